@@ -0,0 +1,22 @@
+package org.nate.cassandra;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The non-blocking counterpart of {@link Cassandra}.  Bad arguments and unmappable entities are
+ * reported by throwing straight away, everything that happens once a request is sent completes
+ * the returned future, with a CassandraOperationException when it fails.
+ */
+public interface AsyncCassandra {
+
+	OperationFuture<Object> get(Class<? extends Object> clazz, String key, String... fields) throws CassandraOperationException;
+	<T> OperationFuture<Map<String, T>> getMany(Class<T> clazz, Collection<String> keys, String... fields) throws CassandraOperationException;
+	OperationFuture<String> getColumnValue(String columnFamily, String key, String column) throws CassandraOperationException;
+	OperationFuture<Void> insert(Object insertObject) throws CassandraOperationException;
+	OperationFuture<Void> insertColumnValue(String columnFamily, String key, String column, String value) throws CassandraOperationException;
+	OperationFuture<Void> remove(Class<? extends Object> clazz, String key) throws CassandraOperationException;
+	OperationFuture<Void> removeColumnValue(String columnFamily, String key, String column) throws CassandraOperationException;
+	void shutdown();
+	
+}
@@ -0,0 +1,370 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.Cassandra.Client;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.NotFoundException;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.nate.cassandra.EntityMetadata.ColumnMetadata;
+import org.nate.cassandra.connector.AsyncCall;
+import org.nate.cassandra.connector.AsyncConnection;
+import org.nate.cassandra.connector.ConnectionFactory;
+import org.nate.cassandra.connector.SelectorPool;
+import org.slf4j.Logger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Sends requests over pipelined non-blocking connections driven by a {@link SelectorPool}, so a 
+ * handful of selector threads keep any number of requests in flight.  The servers must use the
+ * framed transport.  Keyspace, consistency levels and the mapping of entities come from the 
+ * given CassandraOperations, and writes invalidate its near cache.  Reads skip the near cache, 
+ * the read coalescer and the read batcher.
+ */
+public class AsyncCassandraOperations implements AsyncCassandra {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(AsyncCassandraOperations.class);
+	private CassandraOperationUtils opUtils = new CassandraOperationUtils();
+	private final CassandraOperations cassandra;
+	private final List<ConnectionFactory> factories;
+	private final SelectorPool selectors;
+	private final AsyncConnection[] connections;
+	private final AtomicInteger next = new AtomicInteger();
+	private int maxFailoverAttempts = 2;
+
+	public AsyncCassandraOperations(CassandraOperations cassandra, List<ConnectionFactory> factories, int connectionsPerHost, SelectorPool selectors) {
+		if (factories.isEmpty() || connectionsPerHost < 1) {
+			throw new IllegalArgumentException("At least one host and one connection per host are needed");
+		}
+		this.cassandra = cassandra;
+		this.factories = new ArrayList<ConnectionFactory>(factories);
+		this.selectors = selectors;
+		this.connections = new AsyncConnection[factories.size() * connectionsPerHost];
+	}
+
+	public OperationFuture<Object> get(final Class<? extends Object> clazz, final String key, String... fields) throws CassandraOperationException {
+		final EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		final SlicePredicate slicePredicate = cassandra.predicateFor(metadata, fields);
+		final ConsistencyLevel consistency = cassandra.getReadConsistency(clazz);
+		return submit(new AsyncCall<Object>() {
+			public void send(Client client) throws TException {
+				client.send_get_slice(cassandra.getKeyspaceName(), key, new ColumnParent(metadata.getColumnFamilyName()), slicePredicate, consistency);
+			}
+			public Object receive(Client client) throws Exception {
+				return cassandra.mapRow(clazz, key, client.recv_get_slice());
+			}
+		}, true);
+	}
+
+	public <T> OperationFuture<Map<String, T>> getMany(final Class<T> clazz, Collection<String> keys, String... fields) throws CassandraOperationException {
+		final EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		final SlicePredicate slicePredicate = cassandra.predicateFor(metadata, fields);
+		final ConsistencyLevel consistency = cassandra.getReadConsistency(clazz);
+		final List<String> keyList = new ArrayList<String>(new HashSet<String>(keys));
+		if (keyList.isEmpty()) {
+			OperationFuture<Map<String, T>> none = new OperationFuture<Map<String, T>>();
+			none.set(new HashMap<String, T>());
+			return none;
+		}
+		return submit(new AsyncCall<Map<String, T>>() {
+			public void send(Client client) throws TException {
+				client.send_multiget_slice(cassandra.getKeyspaceName(), keyList, new ColumnParent(metadata.getColumnFamilyName()), slicePredicate, consistency);
+			}
+			public Map<String, T> receive(Client client) throws Exception {
+				Map<String, T> mapped = new HashMap<String, T>();
+				for (Map.Entry<String, List<ColumnOrSuperColumn>> row : client.recv_multiget_slice().entrySet()) {
+					Object result = cassandra.mapRow(clazz, row.getKey(), row.getValue());
+					if (result != null) {
+						mapped.put(row.getKey(), clazz.cast(result));
+					}
+				}
+				return mapped;
+			}
+		}, true);
+	}
+
+	public OperationFuture<String> getColumnValue(final String columnFamily, final String key, final String column) throws CassandraOperationException {
+		final ConsistencyLevel consistency = cassandra.getReadConsistency(null);
+		return submit(new AsyncCall<String>() {
+			public void send(Client client) throws TException {
+				client.send_get(cassandra.getKeyspaceName(), key, opUtils.createColumnPath(columnFamily, column.getBytes()), consistency);
+			}
+			public String receive(Client client) throws Exception {
+				try {
+					return new String(client.recv_get().getColumn().value);
+				} catch (NotFoundException nfe) {
+					return null;
+				}
+			}
+		}, true);
+	}
+
+	public OperationFuture<Void> insert(Object insertObject) throws CassandraOperationException {
+		if (insertObject == null) {
+			throw new IllegalArgumentException("Object to be inserted cannot be null");
+		}
+		Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		if (cassandra.addInsertMutations(rowMutations, insertObject) == 0) {
+			OperationFuture<Void> nothing = new OperationFuture<Void>();
+			nothing.set(null);
+			return nothing;
+		}
+		return batchMutate(rowMutations, cassandra.getWriteConsistency(insertObject.getClass()));
+	}
+
+	public OperationFuture<Void> insertColumnValue(final String columnFamily, final String key, final String column, final String value) throws CassandraOperationException {
+		final ConsistencyLevel consistency = cassandra.getWriteConsistency(null);
+		OperationFuture<Void> inserted = submit(new AsyncCall<Void>() {
+			public void send(Client client) throws TException {
+				client.send_insert(cassandra.getKeyspaceName(), key, opUtils.createColumnPath(columnFamily, column.getBytes()), value.getBytes(), System.currentTimeMillis(), consistency);
+			}
+			public Void receive(Client client) throws Exception {
+				client.recv_insert();
+				return null;
+			}
+		}, false);
+		return invalidateWhenDone(inserted, columnFamily, key);
+	}
+
+	/**
+	 * Reads the row, then deletes the columns it holds and the index entries of its Indexed
+	 * columns in one batch_mutate.
+	 */
+	public OperationFuture<Void> remove(Class<? extends Object> clazz, final String key) throws CassandraOperationException {
+		final EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		final ConsistencyLevel readConsistency = cassandra.getReadConsistency(clazz);
+		final ConsistencyLevel writeConsistency = cassandra.getWriteConsistency(clazz);
+		final OperationFuture<List<ColumnOrSuperColumn>> read = submit(new AsyncCall<List<ColumnOrSuperColumn>>() {
+			public void send(Client client) throws TException {
+				client.send_get_slice(cassandra.getKeyspaceName(), key, new ColumnParent(metadata.getColumnFamilyName()), opUtils.createEmptySlicePredicate(), readConsistency);
+			}
+			public List<ColumnOrSuperColumn> receive(Client client) throws Exception {
+				return client.recv_get_slice();
+			}
+		}, true);
+		
+		final OperationFuture<Void> removed = new OperationFuture<Void>();
+		read.addListener(new Runnable() {
+			public void run() {
+				if (read.getFailure() != null) {
+					removed.setException(read.getFailure());
+					return;
+				}
+				Map<String, Map<String, List<Mutation>>> rowMutations;
+				try {
+					rowMutations = removeMutations(metadata, key, read.getValue());
+				} catch (Exception e) {
+					removed.setException(new CassandraOperationException("Unable to build remove mutations", e));
+					return;
+				}
+				if (rowMutations.isEmpty()) {
+					removed.set(null);
+				} else {
+					forward(batchMutate(rowMutations, writeConsistency), removed);
+				}
+			}
+		});
+		return removed;
+	}
+
+	public OperationFuture<Void> removeColumnValue(final String columnFamily, final String key, final String column) throws CassandraOperationException {
+		final ConsistencyLevel consistency = cassandra.getWriteConsistency(null);
+		OperationFuture<Void> removed = submit(new AsyncCall<Void>() {
+			public void send(Client client) throws TException {
+				client.send_remove(cassandra.getKeyspaceName(), key, opUtils.createColumnPath(columnFamily, column.getBytes()), System.currentTimeMillis(), consistency);
+			}
+			public Void receive(Client client) throws Exception {
+				client.recv_remove();
+				return null;
+			}
+		}, false);
+		return invalidateWhenDone(removed, columnFamily, key);
+	}
+
+	/**
+	 * Closes the connections, failing whatever is still in flight on them.  The selector pool is
+	 * left running since it may be shared.
+	 */
+	public void shutdown() {
+		synchronized (connections) {
+			for (AsyncConnection connection : connections) {
+				if (connection != null) {
+					connection.closeConnection();
+				}
+			}
+		}
+	}
+
+	public void setMaxFailoverAttempts(int maxFailoverAttempts) {
+		this.maxFailoverAttempts = maxFailoverAttempts;
+	}
+
+	private OperationFuture<Void> batchMutate(final Map<String, Map<String, List<Mutation>>> rowMutations, final ConsistencyLevel consistency) {
+		OperationFuture<Void> mutated = submit(new AsyncCall<Void>() {
+			public void send(Client client) throws TException {
+				client.send_batch_mutate(cassandra.getKeyspaceName(), rowMutations, consistency);
+			}
+			public Void receive(Client client) throws Exception {
+				client.recv_batch_mutate();
+				return null;
+			}
+		}, false);
+		return invalidateWhenDone(mutated, new Runnable() {
+			public void run() {
+				cassandra.invalidate(rowMutations);
+			}
+		});
+	}
+
+	private Map<String, Map<String, List<Mutation>>> removeMutations(EntityMetadata metadata, String key, List<ColumnOrSuperColumn> columns) {
+		Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		if (columns.isEmpty()) {
+			return rowMutations;
+		}
+		long timestamp = System.currentTimeMillis();
+		List<byte[]> columnNames = new ArrayList<byte[]>();
+		for (ColumnOrSuperColumn it : columns) {
+			columnNames.add(it.getColumn().getName());
+			ColumnMetadata columnMetadata = metadata.getColumn(it.getColumn().getName());
+			if (columnMetadata != null && columnMetadata.isIndexed()) {
+				Object value = columnMetadata.fromBytes(it.getColumn().getValue());
+				if (value != null) {
+					cassandra.addIndexMutation(rowMutations, columnMetadata.getIndex(), columnMetadata.getIndex().deletion(value, key, timestamp));
+				}
+			}
+		}
+		
+		Deletion deletion = new Deletion(timestamp);
+		deletion.setPredicate(opUtils.createColumnNamePredicate(columnNames));
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+		Map<String, List<Mutation>> columnFamilyMutations = new HashMap<String, List<Mutation>>();
+		columnFamilyMutations.put(metadata.getColumnFamilyName(), Lists.newArrayList(mutation));
+		cassandra.mergeMutations(rowMutations, Collections.singletonMap(key, columnFamilyMutations));
+		return rowMutations;
+	}
+
+	private OperationFuture<Void> invalidateWhenDone(OperationFuture<Void> write, final String columnFamily, final String key) {
+		return invalidateWhenDone(write, new Runnable() {
+			public void run() {
+				cassandra.invalidate(columnFamily, key);
+			}
+		});
+	}
+
+	/**
+	 * @return a future completing once the write has and the rows it touched were invalidated, so 
+	 * a caller that waited for the write never reads those rows as they were before it
+	 */
+	private OperationFuture<Void> invalidateWhenDone(final OperationFuture<Void> write, final Runnable invalidation) {
+		final OperationFuture<Void> invalidated = new OperationFuture<Void>();
+		write.addListener(new Runnable() {
+			public void run() {
+				try {
+					invalidation.run();
+				} finally {
+					forward(write, invalidated);
+				}
+			}
+		});
+		return invalidated;
+	}
+
+	private <T> void forward(final OperationFuture<T> from, final OperationFuture<T> to) {
+		from.addListener(new Runnable() {
+			public void run() {
+				if (from.getFailure() != null) {
+					to.setException(from.getFailure());
+				} else {
+					to.set(from.getValue());
+				}
+			}
+		});
+	}
+
+	private <T> OperationFuture<T> submit(AsyncCall<T> call, boolean idempotent) {
+		OperationFuture<T> result = new OperationFuture<T>();
+		attempt(call, idempotent, result, new HashSet<String>());
+		return result;
+	}
+
+	/**
+	 * Like OperationWorker, only reads are sent again after a host failure, on another host.
+	 */
+	private <T> void attempt(final AsyncCall<T> call, final boolean idempotent, final OperationFuture<T> result, final Set<String> failedHosts) {
+		final AsyncConnection connection;
+		try {
+			connection = connection(failedHosts);
+		} catch (TTransportException e) {
+			result.setException(new CassandraOperationException("Unable to perform operation", e));
+			return;
+		}
+		
+		final OperationFuture<T> sent = new OperationFuture<T>();
+		sent.addListener(new Runnable() {
+			public void run() {
+				Throwable failure = sent.getFailure();
+				if (failure == null) {
+					result.set(sent.getValue());
+				} else if (idempotent && isHostFailure(failure) && failedHosts.size() < maxFailoverAttempts && failedHosts.size() + 1 < factories.size() && !result.isDone()) {
+					failedHosts.add(connection.getHost());
+					logger.debug("Host " + connection.getHost() + " failed, retrying on another host (attempt " + failedHosts.size() + ")");
+					attempt(call, idempotent, result, failedHosts);
+				} else {
+					result.setException(new CassandraOperationException("Unable to perform operation", failure));
+				}
+			}
+		});
+		connection.call(call, sent);
+	}
+
+	private boolean isHostFailure(Throwable failure) {
+		return failure instanceof TTransportException || failure instanceof TimedOutException;
+	}
+
+	/**
+	 * Picks the next connection round robin, skipping failed hosts, and reopens it when closed.
+	 */
+	private AsyncConnection connection(Set<String> failedHosts) throws TTransportException {
+		TTransportException lastFailure = null;
+		for (int i = 0; i < connections.length; i++) {
+			int slot = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+			ConnectionFactory factory = factories.get(slot % factories.size());
+			if (failedHosts.contains(factory.getHost())) {
+				continue;
+			}
+			synchronized (connections) {
+				AsyncConnection connection = connections[slot];
+				if (connection != null && connection.isOpen()) {
+					return connection;
+				}
+				connection = new AsyncConnection(factory, selectors);
+				try {
+					connection.openConnection();
+					connections[slot] = connection;
+					return connection;
+				} catch (TTransportException e) {
+					lastFailure = e;
+				}
+			}
+		}
+		throw lastFailure != null ? lastFailure : new TTransportException(TTransportException.NOT_OPEN, "No host left to try");
+	}
+}
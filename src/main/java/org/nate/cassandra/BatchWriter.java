@@ -0,0 +1,256 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.slf4j.Logger;
+
+/**
+ * Buffers writes and sends them as batch_mutate calls, either once maxBatchSize mutations
+ * have been collected or every flushInterval milliseconds, whichever comes first.  Up to
+ * maxInFlightBatches batches are sent concurrently over pooled connections, and once
+ * maxQueuedBatches more are waiting the calling thread sends the next batch itself,
+ * which keeps memory bounded when Cassandra cannot keep up.  A batch that can no longer be
+ * sent because the writer was closed fails its futures instead.
+ * <p>
+ * Writes to the same row are not ordered with respect to each other, as always with
+ * Cassandra the column timestamps decide which one wins.  Each batch is sent with a single
+ * write consistency level, so a write needing a different level than the buffered ones 
+ * flushes them first.
+ */
+public class BatchWriter {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(BatchWriter.class);
+	private final CassandraOperations cassandra;
+	private final int maxBatchSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ThreadPoolExecutor senders;
+	private final ScheduledExecutorService flusher;
+	private Batch pending = new Batch();
+	private volatile boolean closed = false;
+
+	public BatchWriter(CassandraOperations cassandra) {
+		this(cassandra, 500, 50L, 4, 16);
+	}
+
+	public BatchWriter(CassandraOperations cassandra, int maxBatchSize, long flushInterval, int maxInFlightBatches, int maxQueuedBatches) {
+		this.cassandra = cassandra;
+		this.maxBatchSize = maxBatchSize;
+		this.senders = new ThreadPoolExecutor(maxInFlightBatches, maxInFlightBatches, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(maxQueuedBatches), new NamedThreadFactory("cassandra-batch-writer"),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+						BatchSender sender = (BatchSender) task;
+						if (executor.isShutdown()) {
+							sender.batch.complete(new CassandraOperationException("BatchWriter was closed before the batch could be sent"));
+						} else {
+							sender.run();
+						}
+					}
+				});
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cassandra-batch-flusher"));
+		this.flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public Future<Void> insert(Object insertObject) throws CassandraOperationException {
+		if (insertObject == null) {
+			throw new IllegalArgumentException("Object to be inserted cannot be null");
+		}
+		Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		int mutationCount = cassandra.addInsertMutations(rowMutations, insertObject);
+		return enqueue(rowMutations, mutationCount, cassandra.getWriteConsistency(insertObject.getClass()));
+	}
+
+	/**
+	 * Writes every non-null column of the object.  Columns whose field is null are left as they are.
+	 */
+	public Future<Void> update(Object updateObject) throws CassandraOperationException {
+		if (updateObject == null) {
+			throw new IllegalArgumentException("Object to be updated cannot be null");
+		}
+		Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		int mutationCount = cassandra.addInsertMutations(rowMutations, updateObject);
+		return enqueue(rowMutations, mutationCount, cassandra.getWriteConsistency(updateObject.getClass()));
+	}
+
+	/**
+	 * Deletes the mapped columns of the row.  Unlike {@link CassandraOperations#remove(Class, String)}
+	 * this does not read the row first, so columns that are not mapped on the class are kept.
+	 */
+	public Future<Void> remove(Class<? extends Object> clazz, String key) throws CassandraOperationException {
+		Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		int mutationCount = cassandra.addRemoveMutations(rowMutations, clazz, key);
+		return enqueue(rowMutations, mutationCount, cassandra.getWriteConsistency(clazz));
+	}
+
+	/**
+	 * Sends whatever is buffered right away.
+	 */
+	public void flush() {
+		Batch full = null;
+		lock.lock();
+		try {
+			full = drain();
+		} finally {
+			lock.unlock();
+		}
+		send(full);
+	}
+
+	/**
+	 * Flushes the buffer and waits for all in flight batches to complete.
+	 */
+	public void close() throws InterruptedException {
+		lock.lock();
+		try {
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		flusher.shutdown();
+		// a scheduled flush may still be sending, let it hand its batch over before we stop the senders
+		flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		flush();
+		senders.shutdown();
+		senders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private Future<Void> enqueue(Map<String, Map<String, List<Mutation>>> rowMutations, int mutationCount, ConsistencyLevel consistency) throws CassandraOperationException {
+		WriteFuture future = new WriteFuture();
+		if (mutationCount == 0) {
+			future.complete(null);
+			return future;
+		}
+
+		Batch other = null;
+		Batch full = null;
+		lock.lock();
+		try {
+			if (closed) {
+				throw new CassandraOperationException("BatchWriter has been closed");
+			}
+			if (pending.consistency != consistency) {
+				other = drain();
+				pending.consistency = consistency;
+			}
+			cassandra.mergeMutations(pending.rowMutations, rowMutations);
+			pending.futures.add(future);
+			pending.mutationCount += mutationCount;
+			if (pending.mutationCount >= maxBatchSize) {
+				full = drain();
+			}
+		} finally {
+			lock.unlock();
+		}
+		send(other);
+		send(full);
+		return future;
+	}
+
+	private Batch drain() {
+		if (pending.mutationCount == 0) {
+			return null;
+		}
+		Batch drained = pending;
+		pending = new Batch();
+		return drained;
+	}
+
+	private void send(final Batch batch) {
+		if (batch == null) {
+			return;
+		}
+		senders.execute(new BatchSender(batch));
+	}
+
+	private class BatchSender implements Runnable {
+		private final Batch batch;
+
+		BatchSender(Batch batch) {
+			this.batch = batch;
+		}
+
+		public void run() {
+			try {
+				cassandra.sendBatch(batch.rowMutations, batch.consistency);
+				batch.complete(null);
+			} catch (Exception e) {
+				logger.debug("Batch of " + batch.mutationCount + " mutations failed", e);
+				batch.complete(e);
+			}
+		}
+	}
+
+	private static class Batch {
+		private final Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		private final List<WriteFuture> futures = new ArrayList<WriteFuture>();
+		private int mutationCount = 0;
+		private ConsistencyLevel consistency;
+
+		void complete(Exception failure) {
+			for (WriteFuture future : futures) {
+				future.complete(failure);
+			}
+		}
+	}
+
+	private static class WriteFuture implements Future<Void> {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Exception failure;
+
+		void complete(Exception failure) {
+			this.failure = failure;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public Void get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return result();
+		}
+
+		private Void result() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return null;
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package org.nate.cassandra;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.nate.cassandra.connector.ConnectionPool;
+import org.nate.functions.functors.ActionFn;
 
 
 
@@ -10,9 +14,17 @@ public interface Cassandra {
 	
 	int count(String columnFamily, String key) throws CassandraOperationException;
 	Object get(Class<? extends Object> clazz, String key) throws CassandraOperationException;
+	Object get(Class<? extends Object> clazz, String key, String... fields) throws CassandraOperationException;
+	<T> Map<String, T> getMany(Class<T> clazz, Collection<String> keys) throws CassandraOperationException;
+	<T> Map<String, T> getMany(Class<T> clazz, Collection<String> keys, String... fields) throws CassandraOperationException;
 	List<Object> getAll(Class<? extends Object> clazz);
+	<T> Iterable<T> scan(Class<T> clazz) throws CassandraOperationException;
+	<T> Iterable<T> scan(Class<T> clazz, int pageSize, int prefetchDepth) throws CassandraOperationException;
+	<T> long parallelScan(Class<T> clazz, ActionFn<T> sink) throws CassandraOperationException;
+	<T> long parallelScan(Class<T> clazz, ActionFn<T> sink, int parallelism) throws CassandraOperationException;
 	String getColumnValue(String columnFamily, String key, String column) throws CassandraOperationException;
 	void insert(Object insertObject) throws CassandraOperationException;
+	void insertAll(Collection<?> insertObjects) throws CassandraOperationException;
 	void insertColumnValue(String columnFamily, String key, String column, String value) throws CassandraOperationException;
 	void remove(Class<? extends Object> clazz, String key) throws CassandraOperationException;
 	void removeColumnValue(String columnFamily, String key, String column) throws CassandraOperationException;
@@ -20,5 +32,8 @@ public interface Cassandra {
 	String describe() throws CassandraOperationException;
 	ConnectionPool getConnectionPool();
 	String getKeyspaceName();
+	Cassandra withConsistency(ConsistencyPolicy consistencyOverride);
+	ConsistencyLevel getReadConsistency(Class<?> clazz);
+	ConsistencyLevel getWriteConsistency(Class<?> clazz);
 	
 }
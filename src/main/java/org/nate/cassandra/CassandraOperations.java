@@ -1,10 +1,20 @@
 package org.nate.cassandra;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.thrift.Cassandra.Client;
 import org.apache.cassandra.thrift.Column;
@@ -12,25 +22,26 @@ import org.apache.cassandra.thrift.ColumnOrSuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ColumnPath;
 import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.KeyRange;
 import org.apache.cassandra.thrift.KeySlice;
 import org.apache.cassandra.thrift.Mutation;
 import org.apache.cassandra.thrift.NotFoundException;
 import org.apache.cassandra.thrift.SlicePredicate;
-import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.EntityMetadata.ColumnMetadata;
 import org.nate.cassandra.connector.ConnectionPool;
-import org.nate.functions.functors.FilterFn;
-import org.nate.functions.functors.ListFunctions;
-import org.nate.functions.functors.TransformFn;
-import org.nate.functions.functors.exceptions.FunctorException;
-import org.nate.functions.options.Option;
+import org.nate.cassandra.connector.TokenAwarePolicy;
+import org.nate.cassandra.connector.TokenRing;
+import org.nate.functions.functors.ActionFn;
 import org.slf4j.Logger;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
 public class CassandraOperations implements Cassandra {
 
-	private static final char SPACE_SEPARATOR = ' ';
+	private static final String CACHED_ROW = "row";
+	private static final String CACHED_COLUMN = "column:";
+
 	private Logger log = org.slf4j.LoggerFactory.getLogger(CassandraOperations.class);
 	private CassandraOperationUtils opUtils = new CassandraOperationUtils();
 	private OperationWorker worker = new OperationWorker(this);
@@ -38,13 +49,27 @@ public class CassandraOperations implements Cassandra {
 	private ConnectionPool connectionPool;
 	private Client client;
 	private String keyspaceName = "Keyspace1";
+	private int maxMutationsPerBatch = 1000;
+	private int rangePageSize = 100;
+	private int prefetchDepth = 0;
+	private long scanAbandonTimeout = 60000L;
+	private int scanParallelism = 4;
+	private int multigetBatchSize = 100;
+	private int multigetParallelism = 1;
+	private ExecutorService multigetExecutor;
+	private ConsistencyPolicy defaultConsistency = new ConsistencyPolicy(ConsistencyLevel.ONE, ConsistencyLevel.ONE);
+	private ConsistencyPolicy consistencyOverride;
+	private CassandraOperations root = this;
+	private NearCache nearCache;
+	private ReadCoalescer readCoalescer = new ReadCoalescer();
+	private ReadBatcher readBatcher;
 	
 	public int count(final String columnFamily, final String key) throws CassandraOperationException {
-		return worker.doWork(new Operation<Integer>(this) {
+		return worker.doWork(new ReadOperation<Integer>(this, key) {
 			public Integer work() throws Exception {
 				SlicePredicate slicePredicate = opUtils.createEmptySlicePredicate();
 				
-				List<ColumnOrSuperColumn> sliceResults = client.get_slice(keyspaceName, key, new ColumnParent(columnFamily), slicePredicate, ConsistencyLevel.ONE);
+				List<ColumnOrSuperColumn> sliceResults = client.get_slice(keyspaceName, key, new ColumnParent(columnFamily), slicePredicate, readConsistency(null));
 	
 				return sliceResults.size();
 			}
@@ -55,7 +80,7 @@ public class CassandraOperations implements Cassandra {
 		StringBuilder keyspaceDescription = new StringBuilder(keyspaceName);
 		keyspaceDescription.append("{\n");
 		
-		keyspaceDescription.append(worker.doWork(new Operation<StringBuilder>(this) {
+		keyspaceDescription.append(worker.doWork(new ReadOperation<StringBuilder>(this) {
 			public StringBuilder work() throws Exception {
 				StringBuilder innerDescription = new StringBuilder();
 				Map<String, Map<String, String>> keyspaceRepresentationMap = client.describe_keyspace(keyspaceName);
@@ -76,86 +101,328 @@ public class CassandraOperations implements Cassandra {
 	}
 
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@SuppressWarnings("rawtypes")
 	public Object get(final Class clazz, final String key) throws CassandraOperationException {
+		return get(clazz, key, new String[0]);
+	}
+
+	/**
+	 * Reads only the columns of the named fields, or the columns that are not Lazy when no fields
+	 * are named.  Fields that are not read are left at their defaults.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Object get(final Class clazz, final String key, final String... fields) throws CassandraOperationException {
 		log.debug("Performing get operation - " + clazz.getSimpleName() + ":" + key);
-		return worker.doWork(new Operation<Object>(this) {
-			public Object work() throws Exception {
-				final Object result = clazz.getConstructor(new Class[]{}).newInstance(new Object[]{});
-				
-				if (clazz.isAnnotationPresent(ColumnFamily.class)) {
-					String columnFamilyName = opUtils.determineColumnFamily(clazz); 
-					SlicePredicate slicePredicate = opUtils.createEmptySlicePredicate();
-					
-					final List<ColumnOrSuperColumn> sliceResults = client.get_slice(keyspaceName, key, new ColumnParent(columnFamilyName), slicePredicate, ConsistencyLevel.ONE);			
-					
-					if (sliceResults.isEmpty()) {
-						return null;
+		final String columnFamilyName = EntityMetadata.forClass(clazz).getColumnFamilyName();
+		final boolean cached = fields.length == 0 && usesNearCache() && EntityMetadata.forClass(clazz).isColumnFamily();
+		if (cached) {
+			List<ColumnOrSuperColumn> cachedColumns = (List<ColumnOrSuperColumn>) nearCache.get(columnFamilyName, key, CACHED_ROW);
+			if (cachedColumns != null) {
+				try {
+					return mapRow(clazz, key, cachedColumns);
+				} catch (Exception e) {
+					throw new CassandraOperationException("Unable to perform get operation", e);
+				}
+			}
+		}
+		
+		long cacheVersion = cached ? nearCache.version(columnFamilyName, key) : 0L;
+		List<ColumnOrSuperColumn> sliceResults = readRow(clazz, key, fields);
+		if (cached && !sliceResults.isEmpty()) {
+			nearCache.put(columnFamilyName, key, CACHED_ROW, sliceResults, cacheVersion);
+		}
+		try {
+			return mapRow(clazz, key, sliceResults);
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to perform get operation", e);
+		}
+	}
+
+	/**
+	 * Reads the columns of one row, through the read batcher when there is one.  Otherwise 
+	 * concurrent reads of the same columns of the same row share one get_slice unless read 
+	 * coalescing is turned off.
+	 */
+	private List<ColumnOrSuperColumn> readRow(Class<?> clazz, final String key, String... fields) throws CassandraOperationException {
+		final EntityMetadata metadata;
+		final SlicePredicate slicePredicate;
+		try {
+			metadata = EntityMetadata.forColumnFamily(clazz);
+			slicePredicate = predicateFor(metadata, fields);
+		} catch (IllegalArgumentException e) {
+			throw new CassandraOperationException("Unable to perform get operation", e);
+		}
+		final ConsistencyLevel consistency = readConsistency(metadata);
+		List<Object> readKey = Arrays.<Object>asList(metadata.getColumnFamilyName(), Arrays.asList(fields), consistency);
+		
+		if (readBatcher != null) {
+			return readBatcher.read(readKey, metadata.getColumnFamilyName(), slicePredicate, consistency, key);
+		}
+		Callable<List<ColumnOrSuperColumn>> read = new Callable<List<ColumnOrSuperColumn>>() {
+			public List<ColumnOrSuperColumn> call() throws Exception {
+				return worker.doWork(new ReadOperation<List<ColumnOrSuperColumn>>(CassandraOperations.this, key) {
+					public List<ColumnOrSuperColumn> work() throws Exception {
+						return client.get_slice(keyspaceName, key, new ColumnParent(metadata.getColumnFamilyName()), slicePredicate, consistency);
 					}
-					
-					List<Field> declaredFields = Lists.newArrayList(clazz.getDeclaredFields());				
-					Option<Field> keyFieldOption = opUtils.keyFieldFor(declaredFields);
-					keyFieldOption.get().setAccessible(true);
-					keyFieldOption.get().set(result, key);
-									
-					for (final Field field : declaredFields) {
-						field.setAccessible(true);
-						Option<ColumnOrSuperColumn> columnOption = ListFunctions.find(sliceResults, new FilterFn<ColumnOrSuperColumn>(){
-							public boolean apply(ColumnOrSuperColumn it) {
-								return new String(it.getColumn().getName()).equals(field.getName());
-							}							
-						});
-						if (columnOption.isSome()) {
-							field.set(result, opUtils.convertStringToValue(new String(columnOption.get().getColumn().getValue()), field.getType()));
-						}
+				});
+			}
+		};
+		if (readCoalescer != null) {
+			return readCoalescer.read(Arrays.asList(metadata.getColumnFamilyName(), key), Arrays.asList(readKey, key), read);
+		}
+		try {
+			return read.call();
+		} catch (CassandraOperationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to perform get operation", e);
+		}
+	}
+
+
+	/**
+	 * Reads many rows with multiget_slice, multigetBatchSize keys per call.  With a token aware host 
+	 * selection policy the keys are grouped by replica first so each call can go to a host owning all
+	 * of its keys, and with a multigetParallelism above one the calls run concurrently.
+	 * 
+	 * @return the entities in the order of the given keys, without the keys that do not exist
+	 */
+	public <T> Map<String, T> getMany(Class<T> clazz, Collection<String> keys) throws CassandraOperationException {
+		return getMany(clazz, keys, new String[0]);
+	}
+
+	/**
+	 * Like {@link #getMany(Class, Collection)}, reading only the columns of the named fields.
+	 */
+	public <T> Map<String, T> getMany(final Class<T> clazz, Collection<String> keys, String... fields) throws CassandraOperationException {
+		log.debug("Performing get many operation - " + clazz.getSimpleName() + ":" + keys.size() + " keys");
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		final String columnFamilyName = metadata.getColumnFamilyName();
+		final SlicePredicate slicePredicate = predicateFor(metadata, fields);
+		final ConsistencyLevel consistency = readConsistency(metadata);
+		List<List<String>> batches = batchKeysByReplica(keys);
+		
+		Map<String, T> fetched = new HashMap<String, T>();
+		if (multigetParallelism <= 1 || batches.size() == 1) {
+			for (List<String> batch : batches) {
+				fetched.putAll(multiget(clazz, columnFamilyName, slicePredicate, consistency, batch));
+			}
+		} else {
+			List<Future<Map<String, T>>> pending = new ArrayList<Future<Map<String, T>>>();
+			for (final List<String> batch : batches) {
+				pending.add(multigetExecutor().submit(new Callable<Map<String, T>>() {
+					public Map<String, T> call() throws Exception {
+						return multiget(clazz, columnFamilyName, slicePredicate, consistency, batch);
 					}
-				
-					return result;
-				} else {
-					throw new IllegalArgumentException(Joiner.on(SPACE_SEPARATOR).join("Class", clazz.getName(), "is not a ColumnFamily"));
+				}));
+			}
+			try {
+				for (Future<Map<String, T>> batch : pending) {
+					fetched.putAll(batch.get());
 				}
-			}}); 
+			} catch (ExecutionException e) {
+				for (Future<Map<String, T>> batch : pending) {
+					batch.cancel(true);
+				}
+				throw new CassandraOperationException("Unable to perform getMany operation", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CassandraOperationException("Interrupted during getMany operation", e);
+			}
+		}
+		
+		Map<String, T> results = new LinkedHashMap<String, T>();
+		for (String key : keys) {
+			T result = fetched.get(key);
+			if (result != null) {
+				results.put(key, result);
+			}
+		}
+		return results;
 	}
 
+	private <T> Map<String, T> multiget(final Class<T> clazz, final String columnFamilyName, final SlicePredicate slicePredicate, final ConsistencyLevel consistency, final List<String> keys) throws CassandraOperationException {
+		Map<String, T> mapped = new HashMap<String, T>();
+		for (Map.Entry<String, List<ColumnOrSuperColumn>> row : multigetColumns(columnFamilyName, slicePredicate, consistency, keys).entrySet()) {
+			try {
+				Object result = mapRow(clazz, row.getKey(), row.getValue());
+				if (result != null) {
+					mapped.put(row.getKey(), clazz.cast(result));
+				}
+			} catch (Exception e) {
+				throw new CassandraOperationException("Unable to map row " + row.getKey(), e);
+			}
+		}
+		return mapped;
+	}
+
+	Map<String, List<ColumnOrSuperColumn>> multigetColumns(final String columnFamilyName, final SlicePredicate slicePredicate, final ConsistencyLevel consistency, final List<String> keys) throws CassandraOperationException {
+		return worker.doWork(new ReadOperation<Map<String, List<ColumnOrSuperColumn>>>(this, keys.get(0)) {
+			public Map<String, List<ColumnOrSuperColumn>> work() throws Exception {
+				return client.multiget_slice(keyspaceName, keys, new ColumnParent(columnFamilyName), slicePredicate, consistency);
+			}
+		});
+	}
 
+	private List<List<String>> batchKeysByReplica(Collection<String> keys) {
+		TokenRing ring = null;
+		if (connectionPool != null && connectionPool.getHostSelectionPolicy() instanceof TokenAwarePolicy) {
+			ring = ((TokenAwarePolicy) connectionPool.getHostSelectionPolicy()).getRing();
+		}
+		
+		Map<String, List<String>> keysByReplica = new LinkedHashMap<String, List<String>>();
+		for (String key : new LinkedHashSet<String>(keys)) {
+			String replica = "";
+			if (ring != null && !ring.replicasFor(key).isEmpty()) {
+				replica = ring.replicasFor(key).get(0);
+			}
+			List<String> replicaKeys = keysByReplica.get(replica);
+			if (replicaKeys == null) {
+				replicaKeys = new ArrayList<String>();
+				keysByReplica.put(replica, replicaKeys);
+			}
+			replicaKeys.add(key);
+		}
+		
+		List<List<String>> batches = new ArrayList<List<String>>();
+		for (List<String> replicaKeys : keysByReplica.values()) {
+			for (int start = 0; start < replicaKeys.size(); start += multigetBatchSize) {
+				batches.add(replicaKeys.subList(start, Math.min(start + multigetBatchSize, replicaKeys.size())));
+			}
+		}
+		return batches;
+	}
+
+	private ExecutorService multigetExecutor() {
+		return root.sharedMultigetExecutor();
+	}
+
+	private synchronized ExecutorService sharedMultigetExecutor() {
+		if (multigetExecutor == null) {
+			multigetExecutor = Executors.newFixedThreadPool(multigetParallelism, new NamedThreadFactory("cassandra-multiget"));
+		}
+		return multigetExecutor;
+	}
+
+
+	/**
+	 * Reads every row of the column family, one get_range_slices page of rangePageSize rows at a time.
+	 * Rows without any columns (deleted rows that have not been compacted away yet) are skipped.
+	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public List<Object> getAll(final Class clazz) throws CassandraOperationException {
 		log.debug("Performing get all operation - " + clazz.getSimpleName());
-		final List result = new ArrayList();
-			
 		try {
-			if (clazz.isAnnotationPresent(ColumnFamily.class)) {
-				final String columnFamilyName = opUtils.determineColumnFamily(clazz); 
-				final SlicePredicate slicePredicate = opUtils.createEmptySlicePredicate();
-						
-				List<KeySlice> sliceResults = worker.doWork(new Operation<List>(this) {
-					public List work() throws Exception {
-						return client.get_range_slice(keyspaceName, new ColumnParent(columnFamilyName), slicePredicate, "", "", 100, ConsistencyLevel.ONE);				
-				}}); 
-				
-				result.addAll(ListFunctions.transform(sliceResults, new TransformFn<Object, KeySlice>(){
-					public Object apply(KeySlice it) throws FunctorException {
-						return get(clazz, it.getKey());						
-					}	
-				}));
-
-				return result;
-			} else {
-				throw new IllegalArgumentException(Joiner.on(SPACE_SEPARATOR).join("Class", clazz.getName(), "is not a ColumnFamily"));
-			}
+			return Lists.newArrayList(scan(clazz, rangePageSize, 0));
 		} catch (Exception e) {
 			throw new CassandraOperationException("Unable to perform getAll operation", e);
 		}
 	}
 
+	public <T> RangeScan<T> scan(Class<T> clazz) throws CassandraOperationException {
+		return scan(clazz, rangePageSize, prefetchDepth);
+	}
+
+	/**
+	 * Lazily iterates over every row of the column family.  Only the current page and up to 
+	 * prefetchDepth pages fetched ahead of it are held in memory.
+	 */
+	public <T> RangeScan<T> scan(Class<T> clazz, int pageSize, int prefetchDepth) throws CassandraOperationException {
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		return new RangeScan<T>(this, clazz, metadata.getColumnFamilyName(), predicateFor(metadata), pageSize, prefetchDepth, scanAbandonTimeout);
+	}
+
+	public <T> long parallelScan(Class<T> clazz, ActionFn<T> sink) throws CassandraOperationException {
+		return parallelScan(clazz, sink, scanParallelism);
+	}
+
+	/**
+	 * Scans every token range of the ring concurrently, handing each row to the sink.  The sink is 
+	 * called from several threads at once and must be thread safe.
+	 * 
+	 * @return the number of rows handed to the sink
+	 */
+	public <T> long parallelScan(Class<T> clazz, ActionFn<T> sink, int parallelism) throws CassandraOperationException {
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		log.debug("Performing parallel scan operation - " + clazz.getSimpleName());
+		
+		TokenRing ring = worker.doWork(new ReadOperation<TokenRing>(this) {
+			public TokenRing work() throws Exception {
+				return new TokenRing(client.describe_partitioner(), client.describe_ring(keyspaceName));
+			}
+		});
+		return new ParallelScan<T>(this, clazz, metadata.getColumnFamilyName(), predicateFor(metadata), rangePageSize).run(ring, sink, parallelism);
+	}
+
+	List<KeySlice> getRangeSlices(Class<?> clazz, SlicePredicate slicePredicate, KeyRange keyRange) throws CassandraOperationException {
+		return getRangeSlices(clazz, slicePredicate, keyRange, null);
+	}
+
+	/**
+	 * @param endpoints the replicas of the range, tried before any other host
+	 */
+	List<KeySlice> getRangeSlices(Class<?> clazz, final SlicePredicate slicePredicate, final KeyRange keyRange, List<String> endpoints) throws CassandraOperationException {
+		final EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+		return worker.doWork(new ReadOperation<List<KeySlice>>(this, null, endpoints) {
+			public List<KeySlice> work() throws Exception {
+				return client.get_range_slices(keyspaceName, new ColumnParent(metadata.getColumnFamilyName()), slicePredicate, keyRange, readConsistency(metadata));
+			}
+		});
+	}
+
+	/**
+	 * @return a predicate for the columns of the given fields, or for every column that is not Lazy 
+	 * when no fields are given
+	 */
+	SlicePredicate predicateFor(EntityMetadata metadata, String... fields) {
+		if (fields.length == 0) {
+			List<byte[]> eagerColumnNames = metadata.getEagerColumnNames();
+			return eagerColumnNames == null ? opUtils.createEmptySlicePredicate() : opUtils.createColumnNamePredicate(eagerColumnNames);
+		}
+		
+		List<byte[]> columnNames = new ArrayList<byte[]>(fields.length);
+		for (String field : fields) {
+			ColumnMetadata column = metadata.getColumnForField(field);
+			if (column == null) {
+				throw new IllegalArgumentException("Field " + field + " of " + metadata.getEntityClass().getName() + " is not a Column");
+			}
+			columnNames.add(column.getNameBytes());
+		}
+		return opUtils.createColumnNamePredicate(columnNames);
+	}
+
+	/**
+	 * Builds an instance of the class from the columns of one row, or returns null when the row has no columns.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Object mapRow(Class clazz, String key, List<ColumnOrSuperColumn> columns) throws Exception {
+		if (columns.isEmpty()) {
+			return null;
+		}
+		return EntityMapper.forClass(clazz).fromColumns(key, columns);
+	}
+
 	
 	public String getColumnValue(final String columnFamily, final String key, final String column) throws CassandraOperationException {
-		return worker.doWork(new Operation<String>(this){
+		final boolean cached = usesNearCache();
+		if (cached) {
+			String cachedValue = (String) nearCache.get(columnFamily, key, CACHED_COLUMN + column);
+			if (cachedValue != null) {
+				return cachedValue;
+			}
+		}
+		
+		final long cacheVersion = cached ? nearCache.version(columnFamily, key) : 0L;
+		return worker.doWork(new ReadOperation<String>(this, key){
 			public String work() throws Exception {
 				try {
 					ColumnPath columnPath = opUtils.createColumnPath(columnFamily, column.getBytes());
-					Column resultColumn = client.get(keyspaceName, key, columnPath, ConsistencyLevel.ONE).getColumn();		
-					return new String(resultColumn.value);
+					Column resultColumn = client.get(keyspaceName, key, columnPath, readConsistency(null)).getColumn();		
+					String value = new String(resultColumn.value);
+					if (cached) {
+						nearCache.put(columnFamily, key, CACHED_COLUMN + column, value, cacheVersion);
+					}
+					return value;
 				} catch (NotFoundException nfe) {
 					return null;
 				} 
@@ -174,45 +441,181 @@ public class CassandraOperations implements Cassandra {
 			throw new IllegalArgumentException("Object to be inserted cannot be null");
 		}
 		
+		final Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+		if (addInsertMutations(rowMutations, insertObject) == 0) {
+			return;
+		}
+		
+		// route on the entity's row, the mutations may also hold index rows living elsewhere
+		String rowKey = opUtils.convertValueToString(EntityMetadata.forColumnFamily(insertObject.getClass()).getKey(insertObject));
+		final ConsistencyLevel consistency = getWriteConsistency(insertObject.getClass());
+		worker.doWork(new Operation<Void>(this, rowKey) {
+			public Void work() throws Exception {
+				try {
+					client.batch_mutate(keyspaceName, rowMutations, consistency);
+				} finally {
+					invalidate(rowMutations);
+				}
+				return null;
+			}
+		});
+	}
+	
+	public void insertAll(Collection<?> insertObjects) throws CassandraOperationException {
+		if (insertObjects == null) {
+			throw new IllegalArgumentException("Objects to be inserted cannot be null");
+		}
+		log.debug("Performing insert all operation - " + insertObjects.size() + " objects");
+		
+		Map<String, Map<String, List<Mutation>>> batch = new HashMap<String, Map<String, List<Mutation>>>();
+		ConsistencyLevel batchConsistency = null;
+		int batchSize = 0;
+		for (Object insertObject : insertObjects) {
+			if (insertObject == null) {
+				throw new IllegalArgumentException("Object to be inserted cannot be null");
+			}
+			Map<String, Map<String, List<Mutation>>> rowMutations = new HashMap<String, Map<String, List<Mutation>>>();
+			int mutationCount = addInsertMutations(rowMutations, insertObject);
+			ConsistencyLevel consistency = getWriteConsistency(insertObject.getClass());
+			// a single row is never split, an oversized one just gets a batch of its own
+			if (batchSize > 0 && (batchSize + mutationCount > maxMutationsPerBatch || consistency != batchConsistency)) {
+				sendBatch(batch, batchConsistency);
+				batch = new HashMap<String, Map<String, List<Mutation>>>();
+				batchSize = 0;
+			}
+			mergeMutations(batch, rowMutations);
+			batchConsistency = consistency;
+			batchSize += mutationCount;
+		}
+		if (batchSize > 0) {
+			sendBatch(batch, batchConsistency);
+		}
+	}
+	
+	void sendBatch(final Map<String, Map<String, List<Mutation>>> batch, final ConsistencyLevel consistency) throws CassandraOperationException {
 		worker.doWork(new Operation<Void>(this) {
 			public Void work() throws Exception {
-				final Class clazz = insertObject.getClass();
-				if (clazz.isAnnotationPresent(ColumnFamily.class)) {
-					final String columnFamilyName = opUtils.determineColumnFamily(clazz);
-					
-					final List<Field> declaredFields = Lists.newArrayList(clazz.getDeclaredFields());	
-					Option<Field> keyFieldOption = opUtils.keyFieldFor(declaredFields);
-					keyFieldOption.get().setAccessible(true);
-					final Object key = keyFieldOption.get().get(insertObject);
-					
-					if (key == null) {
-						throw new IllegalArgumentException("No key found");
-					} else {
-						for (Field field : declaredFields) {
-							if (field.isAnnotationPresent(org.nate.cassandra.annotation.Column.class)) {
-								field.setAccessible(true);
-								Object fieldValue = field.get(insertObject);
-								if (fieldValue != null) {	
-									ColumnPath columnPath = opUtils.createColumnPath(columnFamilyName, opUtils.determineColumnName(field).getBytes());
-									client.insert(keyspaceName, opUtils.convertValueToString(key), columnPath, opUtils.convertValueToString(fieldValue).getBytes(), System.currentTimeMillis(), ConsistencyLevel.ANY);
-								}
-							}
-						}
-					}	
-				} else {
-					throw new IllegalArgumentException(Joiner.on(SPACE_SEPARATOR).join("Class", clazz.getName(), "is not a ColumnFamily"));
+				try {
+					client.batch_mutate(keyspaceName, batch, consistency);
+				} finally {
+					invalidate(batch);
 				}
 				return null;
 			}
-			
 		});
 	}
 
+	/**
+	 * Adds one mutation per non-null column of the given entity to the row mutation map, and one 
+	 * per non-null Indexed column to add its index entry.  Index entries for values the row held
+	 * before are left for queries to skip.
+	 * 
+	 * @return the number of mutations added
+	 */
+	@SuppressWarnings("unchecked")
+	int addInsertMutations(Map<String, Map<String, List<Mutation>>> rowMutations, Object insertObject) throws CassandraOperationException {
+		try {
+			EntityMetadata metadata = EntityMetadata.forColumnFamily(insertObject.getClass());
+			Object key = metadata.getKey(insertObject);
+			if (key == null) {
+				throw new IllegalArgumentException("No key found");
+			}
+			
+			long timestamp = System.currentTimeMillis();
+			List<Mutation> mutations = new ArrayList<Mutation>();
+			for (Column column : EntityMapper.forClass((Class<Object>) insertObject.getClass()).toColumns(insertObject, timestamp)) {
+				ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
+				columnOrSuper.setColumn(column);
+				Mutation mutation = new Mutation();
+				mutation.setColumn_or_supercolumn(columnOrSuper);
+				mutations.add(mutation);
+			}
+			
+			if (!mutations.isEmpty()) {
+				Map<String, List<Mutation>> columnFamilyMutations = new HashMap<String, List<Mutation>>();
+				columnFamilyMutations.put(metadata.getColumnFamilyName(), mutations);
+				mergeMutations(rowMutations, Collections.singletonMap(opUtils.convertValueToString(key), columnFamilyMutations));
+			}
+			int indexMutations = 0;
+			for (ColumnMetadata columnMetadata : metadata.getIndexedColumns()) {
+				Object value = columnMetadata.get(insertObject);
+				if (value != null) {
+					addIndexMutation(rowMutations, columnMetadata.getIndex(), columnMetadata.getIndex().insertion(value, opUtils.convertValueToString(key), timestamp));
+					indexMutations++;
+				}
+			}
+			return mutations.size() + indexMutations;
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to build insert mutations", e);
+		}
+	}
+	
+	/**
+	 * Adds a deletion of every mapped column of the given row to the row mutation map.
+	 * Unmapped columns in the row are left alone, since batch_mutate can only delete by name.
+	 * 
+	 * @return the number of mutations added
+	 */
+	int addRemoveMutations(Map<String, Map<String, List<Mutation>>> rowMutations, Class<? extends Object> clazz, String key) throws CassandraOperationException {
+		try {
+			EntityMetadata metadata = EntityMetadata.forColumnFamily(clazz);
+			List<byte[]> columnNames = new ArrayList<byte[]>();
+			for (ColumnMetadata columnMetadata : metadata.getColumns()) {
+				columnNames.add(columnMetadata.getNameBytes());
+			}
+			if (columnNames.isEmpty()) {
+				return 0;
+			}
+			
+			SlicePredicate columnsToDelete = new SlicePredicate();
+			columnsToDelete.setColumn_names(columnNames);
+			Deletion deletion = new Deletion(System.currentTimeMillis());
+			deletion.setPredicate(columnsToDelete);
+			Mutation mutation = new Mutation();
+			mutation.setDeletion(deletion);
+			
+			Map<String, List<Mutation>> columnFamilyMutations = new HashMap<String, List<Mutation>>();
+			columnFamilyMutations.put(metadata.getColumnFamilyName(), Lists.newArrayList(mutation));
+			mergeMutations(rowMutations, Collections.singletonMap(key, columnFamilyMutations));
+			return 1;
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to build remove mutations", e);
+		}
+	}
+	
+	void addIndexMutation(Map<String, Map<String, List<Mutation>>> rowMutations, ColumnIndex index, Mutation mutation) {
+		Map<String, List<Mutation>> columnFamilyMutations = new HashMap<String, List<Mutation>>();
+		columnFamilyMutations.put(index.getColumnFamilyName(), Lists.newArrayList(mutation));
+		mergeMutations(rowMutations, Collections.singletonMap(index.getRowKey(), columnFamilyMutations));
+	}
+	
+	void mergeMutations(Map<String, Map<String, List<Mutation>>> target, Map<String, Map<String, List<Mutation>>> source) {
+		for (Map.Entry<String, Map<String, List<Mutation>>> row : source.entrySet()) {
+			Map<String, List<Mutation>> targetRow = target.get(row.getKey());
+			if (targetRow == null) {
+				targetRow = new HashMap<String, List<Mutation>>();
+				target.put(row.getKey(), targetRow);
+			}
+			for (Map.Entry<String, List<Mutation>> columnFamily : row.getValue().entrySet()) {
+				List<Mutation> targetMutations = targetRow.get(columnFamily.getKey());
+				if (targetMutations == null) {
+					targetMutations = new ArrayList<Mutation>();
+					targetRow.put(columnFamily.getKey(), targetMutations);
+				}
+				targetMutations.addAll(columnFamily.getValue());
+			}
+		}
+	}
+
 	public void insertColumnValue(final String columnFamily, final String key, final String column, final String value) throws CassandraOperationException {
-		worker.doWork(new Operation<Void>(this){
+		worker.doWork(new Operation<Void>(this, key){
 			public Void work() throws Exception {
 				ColumnPath columnPath = opUtils.createColumnPath(columnFamily, column.getBytes());
-				client.insert(keyspaceName, key, columnPath, value.getBytes(), System.currentTimeMillis(), ConsistencyLevel.ANY);
+				try {
+					client.insert(keyspaceName, key, columnPath, value.getBytes(), System.currentTimeMillis(), writeConsistency(null));
+				} finally {
+					invalidate(columnFamily, key);
+				}
 				return null;
 			}
 		});
@@ -221,31 +624,52 @@ public class CassandraOperations implements Cassandra {
 
 
 	public void remove(final Class<? extends Object> clazz, final String key) throws CassandraOperationException {
-		worker.doWork(new Operation<Void>(this){
-			public Void work() throws Exception {
-				if (clazz.isAnnotationPresent(ColumnFamily.class)) {
-					final String columnFamilyName = opUtils.determineColumnFamily(clazz);
-					SlicePredicate slicePredicate = opUtils.createEmptySlicePredicate();
+		try {
+			worker.doWork(new Operation<Void>(this, key){
+				public Void work() throws Exception {
+					EntityMetadata metadata = EntityMetadata.forClass(clazz);
+					if (metadata.isColumnFamily()) {
+						final String columnFamilyName = metadata.getColumnFamilyName();
+						SlicePredicate slicePredicate = opUtils.createEmptySlicePredicate();
 					
-					List<ColumnOrSuperColumn> sliceResults = Lists.newArrayList(client.get_slice(keyspaceName, key, new ColumnParent(columnFamilyName), slicePredicate, ConsistencyLevel.ONE));
+						List<ColumnOrSuperColumn> sliceResults = Lists.newArrayList(client.get_slice(keyspaceName, key, new ColumnParent(columnFamilyName), slicePredicate, readConsistency(metadata)));
 					
-					for (ColumnOrSuperColumn it : sliceResults) {
-						ColumnPath columnPath = opUtils.createColumnPath(columnFamilyName, it.getColumn().getName());
-						client.remove(keyspaceName, key, columnPath, System.currentTimeMillis(), ConsistencyLevel.ALL);			
+						for (ColumnOrSuperColumn it : sliceResults) {
+							ColumnPath columnPath = opUtils.createColumnPath(columnFamilyName, it.getColumn().getName());
+							client.remove(keyspaceName, key, columnPath, System.currentTimeMillis(), writeConsistency(metadata));			
+						
+							ColumnMetadata columnMetadata = metadata.getColumn(it.getColumn().getName());
+							if (columnMetadata != null && columnMetadata.isIndexed()) {
+								ColumnIndex index = columnMetadata.getIndex();
+								Object value = columnMetadata.fromBytes(it.getColumn().getValue());
+								if (value != null) {
+									ColumnPath entryPath = opUtils.createColumnPath(index.getColumnFamilyName(), index.entryName(value, key));
+									client.remove(keyspaceName, index.getRowKey(), entryPath, System.currentTimeMillis(), writeConsistency(metadata));
+								}
+							}
+						}
 					}
+					return null;
 				}
-				return null;
+			});
+		} finally {
+			if (EntityMetadata.forClass(clazz).isColumnFamily()) {
+				invalidate(EntityMetadata.forClass(clazz).getColumnFamilyName(), key);
 			}
-		}); 
+		}
 	}
 
 	public void removeColumnValue(final String columnFamily, final String key, final String column) throws CassandraOperationException {
-		worker.doWork(new Operation<Void>(this){
+		worker.doWork(new Operation<Void>(this, key){
 			public Void work() throws Exception {
 				ColumnPath columnPath = new ColumnPath();
 				columnPath.setColumn(column.getBytes());
 				columnPath.setColumn_family(columnFamily);				
-				client.remove(keyspaceName, key, columnPath, System.currentTimeMillis(), ConsistencyLevel.ALL);
+				try {
+					client.remove(keyspaceName, key, columnPath, System.currentTimeMillis(), writeConsistency(null));
+				} finally {
+					invalidate(columnFamily, key);
+				}
 				return null;
 			}	
 		}); 
@@ -253,77 +677,271 @@ public class CassandraOperations implements Cassandra {
 
 	public void setConnectionPool(ConnectionPool connectionPool) {
 		this.connectionPool = connectionPool;
+		if (connectionPool != null && keyspaceName != null) {
+			connectionPool.setKeyspace(keyspaceName);
+		}
+	}
+
+	public void setMaxMutationsPerBatch(int maxMutationsPerBatch) {
+		this.maxMutationsPerBatch = maxMutationsPerBatch;
+	}
+
+	public void setRangePageSize(int rangePageSize) {
+		this.rangePageSize = rangePageSize;
+	}
+
+	/**
+	 * How many pages a scan fetches ahead of the consumer on a thread of its own, 0 (the default) 
+	 * fetches each page when it is needed.  Prefetching scans should be closed when abandoned early.
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+	}
+
+	/**
+	 * How long a prefetching scan waits for its consumer to take a page before it assumes the 
+	 * iterator was dropped without being closed and stops fetching.
+	 */
+	public void setScanAbandonTimeout(long scanAbandonTimeout) {
+		this.scanAbandonTimeout = scanAbandonTimeout;
+	}
+
+	public void setScanParallelism(int scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	/**
+	 * Sets the executor running {@link #doAll(List)}, see {@link OperationWorker#setExecutor(Executor)}.
+	 */
+	public void setOperationExecutor(Executor executor) {
+		worker.setExecutor(executor);
+	}
+
+	/**
+	 * Performs the operations concurrently and returns their results in order, for fanning out 
+	 * lookups without a thread pool of our own.
+	 */
+	public <T> List<T> doAll(List<? extends Operation<T>> operations) throws CassandraOperationException {
+		return worker.doAll(operations);
+	}
+
+	public void setMultigetBatchSize(int multigetBatchSize) {
+		this.multigetBatchSize = multigetBatchSize;
+	}
+
+	/**
+	 * The number of multiget_slice calls getMany may have in flight at once, one by default.
+	 */
+	public synchronized void setMultigetParallelism(int multigetParallelism) {
+		this.multigetParallelism = multigetParallelism;
+		if (multigetExecutor != null) {
+			multigetExecutor.shutdown();
+			multigetExecutor = null;
+		}
 	}
 
 	public void setKeyspaceName(String keyspaceName) {
 		this.keyspaceName = keyspaceName;
+		if (connectionPool != null && keyspaceName != null) {
+			connectionPool.setKeyspace(keyspaceName);
+		}
 	}
 
 	public String getKeyspaceName() {
 		return keyspaceName;
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/**
+	 * The consistency levels used when neither the entity nor a view overrides them, ONE for 
+	 * reads and writes by default.
+	 */
+	public void setDefaultConsistency(ConsistencyPolicy defaultConsistency) {
+		if (defaultConsistency.getReadConsistency() == null || defaultConsistency.getWriteConsistency() == null) {
+			throw new IllegalArgumentException("The default consistency policy must set both levels");
+		}
+		this.defaultConsistency = defaultConsistency;
+	}
+
+	/**
+	 * A view of this instance whose operations use the given consistency levels over those of the
+	 * entities and the defaults.  The view shares the connection pool and takes a copy of the other
+	 * settings as they are now.
+	 */
+	public CassandraOperations withConsistency(ConsistencyPolicy consistencyOverride) {
+		CassandraOperations view = new CassandraOperations();
+		view.root = root;
+		view.connectionPool = connectionPool;
+		view.keyspaceName = keyspaceName;
+		view.maxMutationsPerBatch = maxMutationsPerBatch;
+		view.rangePageSize = rangePageSize;
+		view.prefetchDepth = prefetchDepth;
+		view.scanAbandonTimeout = scanAbandonTimeout;
+		view.scanParallelism = scanParallelism;
+		view.multigetBatchSize = multigetBatchSize;
+		view.multigetParallelism = multigetParallelism;
+		view.defaultConsistency = defaultConsistency;
+		view.consistencyOverride = consistencyOverride;
+		view.nearCache = nearCache;
+		view.readCoalescer = readCoalescer;
+		view.readBatcher = readBatcher;
+		view.worker.setExecutor(worker.getExecutor());
+		return view;
+	}
+
+	public ConsistencyLevel getReadConsistency(Class<?> clazz) {
+		return readConsistency(clazz == null ? null : EntityMetadata.forClass(clazz));
+	}
+
+	public ConsistencyLevel getWriteConsistency(Class<?> clazz) {
+		return writeConsistency(clazz == null ? null : EntityMetadata.forClass(clazz));
+	}
+
+	/**
+	 * Caches the rows read by get and getColumnValue, and the columns read by getColumnValue, 
+	 * until they expire or are written through this instance or one of its views.  get only 
+	 * caches reads of the default columns, and views overriding the read consistency level 
+	 * bypass the cache.
+	 */
+	public void setNearCache(NearCache nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Concurrent gets of the same columns of the same row share one read while it is in flight, 
+	 * unless this is turned off.  A get only shares a read started after the last write to the row
+	 * through this client completed, so it still sees this client's own writes.
+	 */
+	public void setCoalesceReads(boolean coalesceReads) {
+		this.readCoalescer = coalesceReads ? new ReadCoalescer() : null;
+	}
+
+	/**
+	 * With a window above zero, gets arriving within windowMillis of each other are read with a
+	 * single multiget_slice of up to multigetBatchSize keys.  Each get then waits up to the window 
+	 * for others to join it, so this trades a little latency for far fewer calls under load.
+	 */
+	public void setReadBatchWindow(long windowMillis) {
+		this.readBatcher = windowMillis > 0 ? new ReadBatcher(this, windowMillis, multigetBatchSize) : null;
+	}
+
+	private boolean usesNearCache() {
+		return nearCache != null && (consistencyOverride == null || consistencyOverride.getReadConsistency() == null);
+	}
+
+	void invalidate(String columnFamilyName, String key) {
+		if (nearCache != null) {
+			nearCache.invalidate(columnFamilyName, key);
+		}
+		if (readCoalescer != null) {
+			readCoalescer.invalidate(Arrays.asList(columnFamilyName, key));
+		}
+	}
+
+	void invalidate(Map<String, Map<String, List<Mutation>>> rowMutations) {
+		for (Map.Entry<String, Map<String, List<Mutation>>> row : rowMutations.entrySet()) {
+			for (String columnFamilyName : row.getValue().keySet()) {
+				invalidate(columnFamilyName, row.getKey());
+			}
+		}
+	}
+
+	private ConsistencyLevel readConsistency(EntityMetadata metadata) {
+		if (consistencyOverride != null && consistencyOverride.getReadConsistency() != null) {
+			return consistencyOverride.getReadConsistency();
+		} else if (metadata != null && metadata.getReadConsistency() != null) {
+			return metadata.getReadConsistency();
+		}
+		return defaultConsistency.getReadConsistency();
+	}
+
+	private ConsistencyLevel writeConsistency(EntityMetadata metadata) {
+		if (consistencyOverride != null && consistencyOverride.getWriteConsistency() != null) {
+			return consistencyOverride.getWriteConsistency();
+		} else if (metadata != null && metadata.getWriteConsistency() != null) {
+			return metadata.getWriteConsistency();
+		}
+		return defaultConsistency.getWriteConsistency();
+	}
+
 	public void update(final Object updateObject) throws CassandraOperationException {
 		if (updateObject == null) {
 			throw new IllegalArgumentException("Object to be updated cannot be null");
 		}
 		
-		worker.doWork(new Operation<Void>(this){
+		final EntityMetadata metadata = EntityMetadata.forClass(updateObject.getClass());
+		String rowKey = null;
+		if (metadata.isColumnFamily() && metadata.hasKey() && metadata.getKey(updateObject) != null) {
+			rowKey = opUtils.convertValueToString(metadata.getKey(updateObject));
+		}
+		worker.doWork(new Operation<Void>(this, rowKey){
 			public Void work() throws Exception {
-				final Class updatedObjectsClass = updateObject.getClass();
-				if (updatedObjectsClass.isAnnotationPresent(ColumnFamily.class)) {
-					String columnFamilyName = opUtils.determineColumnFamily(updatedObjectsClass); 
-					
-					final List<Field> declaredFields = Lists.newArrayList(updatedObjectsClass.getDeclaredFields());	
-					Option<Field> keyFieldOption = opUtils.keyFieldFor(declaredFields);
-					keyFieldOption.get().setAccessible(true);
-					final Object key = keyFieldOption.get().get(updateObject);
+				if (metadata.isColumnFamily()) {
+					final Object key = metadata.getKey(updateObject);
 					
 					if (key == null) {
 						throw new IllegalArgumentException("No key found");
 					} else {	
-						List<Mutation> mutations = ListFunctions.transform(declaredFields, new TransformFn<Mutation, Field>(){
-							public Mutation apply(Field field) throws FunctorException {
-								try {
-									Mutation mutation = null;
-									if (field.isAnnotationPresent(org.nate.cassandra.annotation.Column.class)) {
-										mutation = new Mutation();
-										field.setAccessible(true);
-										Object fieldValue = field.get(updateObject);
-										Column column = opUtils.createColumnObject(field, fieldValue);
-										
-										ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
-										columnOrSuper.setColumn(column);
-																						
-										mutation.setColumn_or_supercolumn(columnOrSuper);
-									}
-									return mutation;
-								} catch (Exception e) {
-									throw new FunctorException("mutateColumn function failed", e);
-								} 
-							}					
-						});	
-						
-						List<Mutation> filteredMutations = ListFunctions.filter(mutations, new FilterFn<Mutation>() {
-							public boolean apply(Mutation it) throws FunctorException {
-								return it != null;
-							}
-						});
+						long timestamp = System.currentTimeMillis();
+						List<Mutation> mutations = new ArrayList<Mutation>();
+						for (ColumnMetadata columnMetadata : metadata.getColumns()) {
+							Column column = new Column(columnMetadata.getNameBytes(), columnMetadata.toBytes(columnMetadata.get(updateObject)), timestamp);
+							
+							ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
+							columnOrSuper.setColumn(column);
+							Mutation mutation = new Mutation();
+							mutation.setColumn_or_supercolumn(columnOrSuper);
+							mutations.add(mutation);
+						}
 						
 						Map<String, List<Mutation>> columnFamilyUpdates = new HashMap<String, List<Mutation>>();
-						columnFamilyUpdates.put(columnFamilyName, filteredMutations);
+						columnFamilyUpdates.put(metadata.getColumnFamilyName(), mutations);
 						
 						Map<String, Map<String, List<Mutation>>> rowUpdates = new HashMap<String, Map<String, List<Mutation>>>();
 						rowUpdates.put(opUtils.convertValueToString(key), columnFamilyUpdates);
+						addIndexUpdates(client, rowUpdates, metadata, opUtils.convertValueToString(key), updateObject, timestamp);
 						
-						client.batch_mutate(keyspaceName, rowUpdates, ConsistencyLevel.ALL);
+						try {
+							client.batch_mutate(keyspaceName, rowUpdates, writeConsistency(metadata));
+						} finally {
+							invalidate(rowUpdates);
+						}
 					} 
 				}
 				return null;
 			}}); 
 	}
 
+	/**
+	 * Reads the current values of the Indexed columns of the row and adds mutations replacing the 
+	 * index entries of values that change, using the client of the calling operation.
+	 */
+	private void addIndexUpdates(Client client, Map<String, Map<String, List<Mutation>>> rowUpdates, EntityMetadata metadata, String key, Object updateObject, long timestamp) throws Exception {
+		if (metadata.getIndexedColumns().isEmpty()) {
+			return;
+		}
+		List<byte[]> indexedColumnNames = new ArrayList<byte[]>();
+		for (ColumnMetadata columnMetadata : metadata.getIndexedColumns()) {
+			indexedColumnNames.add(columnMetadata.getNameBytes());
+		}
+		Map<ColumnMetadata, Object> previousValues = new HashMap<ColumnMetadata, Object>();
+		for (ColumnOrSuperColumn it : client.get_slice(keyspaceName, key, new ColumnParent(metadata.getColumnFamilyName()), opUtils.createColumnNamePredicate(indexedColumnNames), readConsistency(metadata))) {
+			previousValues.put(metadata.getColumn(it.getColumn().getName()), metadata.getColumn(it.getColumn().getName()).fromBytes(it.getColumn().getValue()));
+		}
+		
+		for (ColumnMetadata columnMetadata : metadata.getIndexedColumns()) {
+			ColumnIndex index = columnMetadata.getIndex();
+			Object previousValue = previousValues.get(columnMetadata);
+			Object value = columnMetadata.get(updateObject);
+			if (previousValue != null && !Arrays.equals(index.entryName(previousValue, key), index.entryName(value, key))) {
+				addIndexMutation(rowUpdates, index, index.deletion(previousValue, key, timestamp));
+			}
+			addIndexMutation(rowUpdates, index, index.insertion(value, key, timestamp));
+		}
+	}
 	
 	public Client getClient() {
 		return this.client;
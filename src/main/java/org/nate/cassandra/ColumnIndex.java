@@ -0,0 +1,237 @@
+package org.nate.cassandra;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.UUID;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The client maintained index of one Indexed column.  The index of a column is a single row of the
+ * index column family, keyed by the entity column family and column name.  Every indexed value is
+ * a column of that row named with the order preserving encoding of the value, a zero byte and the
+ * row key, with the row key as its value.  A slice of the index row between two encoded values 
+ * lists the keys of the rows holding values in that range, in value order.
+ * 
+ * Inserts only add entries and batched removes cannot see the values to unindex, so the index may 
+ * hold entries for values a row no longer has.  Readers must check the rows they find through it.
+ */
+class ColumnIndex {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	private enum Encoding { STRING, BOOLEAN, UUID, INTEGRAL, FLOATING }
+
+	private final String columnFamilyName;
+	private final String rowKey;
+	private final Encoding encoding;
+
+	ColumnIndex(String columnFamilyName, String rowKey, Class<?> type) {
+		this.columnFamilyName = columnFamilyName;
+		this.rowKey = rowKey;
+		this.encoding = encodingFor(type);
+		if (encoding == null) {
+			throw new IllegalArgumentException("Columns of type " + type.getName() + " cannot be Indexed");
+		}
+	}
+
+	String getColumnFamilyName() {
+		return columnFamilyName;
+	}
+
+	String getRowKey() {
+		return rowKey;
+	}
+
+	/**
+	 * @return the entry indexing the given column value of the given row
+	 */
+	byte[] entryName(Object value, String key) {
+		byte[] encoded = encode(comparable(value));
+		byte[] keyBytes = key.getBytes(UTF8);
+		byte[] name = new byte[encoded.length + 1 + keyBytes.length];
+		System.arraycopy(encoded, 0, name, 0, encoded.length);
+		System.arraycopy(keyBytes, 0, name, encoded.length + 1, keyBytes.length);
+		return name;
+	}
+
+	Mutation insertion(Object value, String key, long timestamp) {
+		ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
+		columnOrSuper.setColumn(new Column(entryName(value, key), key.getBytes(UTF8), timestamp));
+		Mutation mutation = new Mutation();
+		mutation.setColumn_or_supercolumn(columnOrSuper);
+		return mutation;
+	}
+
+	Mutation deletion(Object value, String key, long timestamp) {
+		SlicePredicate entry = new SlicePredicate();
+		entry.setColumn_names(Lists.newArrayList(entryName(value, key)));
+		Deletion deletion = new Deletion(timestamp);
+		deletion.setPredicate(entry);
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+		return mutation;
+	}
+
+	/**
+	 * The slice of the index holding the entries of every value meeting the given condition, 
+	 * possibly with a few more.  Slice bounds are inclusive, and since an entry is its encoded value
+	 * followed by a zero byte, the encoded value itself sorts just before its entries and the value 
+	 * followed by a one byte just after them.
+	 * 
+	 * @param operand the operand as returned by {@link #comparable(Object)}
+	 * @return the slice, or null when the condition cannot be answered from the index
+	 */
+	SliceRange rangeFor(QueryConditional conditional, Comparable<Object> operand, int count) {
+		byte[] encoded = encode(operand);
+		if (encoded == null) {
+			return null;
+		}
+		byte[] before = encoded;
+		byte[] after = new byte[encoded.length + 1];
+		System.arraycopy(encoded, 0, after, 0, encoded.length);
+		after[encoded.length] = 1;
+
+		// a double cannot always hold the operand exactly, so take both sides of its nearest value
+		boolean inexact = encoding == Encoding.FLOATING;
+		switch (conditional) {
+			case EQUAL:
+				return new SliceRange(before, after, false, count);
+			case GREATER_THAN:
+				return new SliceRange(inexact ? before : after, EMPTY, false, count);
+			case GREATER_THAN_EQUAL_TO:
+				return new SliceRange(before, EMPTY, false, count);
+			case LESS_THAN:
+				return new SliceRange(EMPTY, inexact ? after : before, false, count);
+			case LESS_THAN_EQUAL_TO:
+				return new SliceRange(EMPTY, after, false, count);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Converts a column value to the form queries compare it in: numbers and dates become 
+	 * BigDecimals, booleans and UUIDs are left as they are and anything else becomes a String.
+	 * 
+	 * @return the comparable value, or null for null, NaN and the infinities
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static Comparable<Object> comparable(Object value) {
+		if (value == null) {
+			return null;
+		} else if (value instanceof Number) {
+			try {
+				return (Comparable) new BigDecimal(value.toString());
+			} catch (NumberFormatException e) {
+				// NaN and the infinities compare with nothing
+				return null;
+			}
+		} else if (value instanceof Date) {
+			return (Comparable) new BigDecimal(((Date) value).getTime());
+		} else if (value instanceof Boolean || value instanceof UUID) {
+			return (Comparable) value;
+		} else if (value instanceof byte[]) {
+			return (Comparable) new String((byte[]) value);
+		}
+		return (Comparable) String.valueOf(value);
+	}
+
+	/**
+	 * Encodes a comparable value so its encodings sort as unsigned bytes in the order of the values.
+	 * Numbers are fixed width with the sign flipped, strings are UTF-8 with the zero and one bytes 
+	 * escaped so no encoded string contains a zero byte.
+	 * 
+	 * @return the encoded value, or null when the value cannot be encoded exactly for this column
+	 */
+	private byte[] encode(Object value) {
+		switch (encoding) {
+			case STRING:
+				return value instanceof String ? escape(((String) value).getBytes(UTF8)) : null;
+			case BOOLEAN:
+				return value instanceof Boolean ? new byte[]{(byte) (((Boolean) value).booleanValue() ? 1 : 0)} : null;
+			case UUID:
+				if (!(value instanceof UUID)) {
+					return null;
+				}
+				byte[] uuid = new byte[16];
+				putLong(uuid, 0, ((UUID) value).getMostSignificantBits() ^ Long.MIN_VALUE);
+				putLong(uuid, 8, ((UUID) value).getLeastSignificantBits() ^ Long.MIN_VALUE);
+				return uuid;
+			case INTEGRAL:
+				if (!(value instanceof BigDecimal)) {
+					return null;
+				}
+				try {
+					return putLong(new byte[8], 0, ((BigDecimal) value).longValueExact() ^ Long.MIN_VALUE);
+				} catch (ArithmeticException e) {
+					return null;
+				}
+			case FLOATING:
+				if (!(value instanceof BigDecimal)) {
+					return null;
+				}
+				long bits = Double.doubleToLongBits(((BigDecimal) value).doubleValue());
+				return putLong(new byte[8], 0, bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+			default:
+				return null;
+		}
+	}
+
+	private static byte[] escape(byte[] bytes) {
+		int escapes = 0;
+		for (byte b : bytes) {
+			if (b == 0 || b == 1) {
+				escapes++;
+			}
+		}
+		if (escapes == 0) {
+			return bytes;
+		}
+		byte[] escaped = new byte[bytes.length + escapes];
+		int i = 0;
+		for (byte b : bytes) {
+			if (b == 0 || b == 1) {
+				escaped[i++] = 1;
+				escaped[i++] = (byte) (b + 1);
+			} else {
+				escaped[i++] = b;
+			}
+		}
+		return escaped;
+	}
+
+	private static byte[] putLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+
+	private static Encoding encodingFor(Class<?> type) {
+		if (type == String.class) {
+			return Encoding.STRING;
+		} else if (type == Boolean.class || type == boolean.class) {
+			return Encoding.BOOLEAN;
+		} else if (type == UUID.class) {
+			return Encoding.UUID;
+		} else if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+			return Encoding.FLOATING;
+		} else if (type == Long.class || type == long.class || type == Integer.class || type == int.class
+				|| type == Short.class || type == short.class || type == Byte.class || type == byte.class
+				|| Date.class.isAssignableFrom(type)) {
+			return Encoding.INTEGRAL;
+		}
+		return null;
+	}
+}
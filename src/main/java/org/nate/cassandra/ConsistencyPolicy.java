@@ -0,0 +1,33 @@
+package org.nate.cassandra;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+
+/**
+ * The consistency levels reads and writes are sent with.  A policy set on CassandraOperations 
+ * provides the defaults, the ColumnFamily annotation can override them per entity and a policy
+ * given to {@link Cassandra#withConsistency(ConsistencyPolicy)} overrides both.  A null level 
+ * leaves the choice to the next of these.
+ */
+public class ConsistencyPolicy {
+
+	private final ConsistencyLevel readConsistency;
+	private final ConsistencyLevel writeConsistency;
+
+	public ConsistencyPolicy(ConsistencyLevel readConsistency, ConsistencyLevel writeConsistency) {
+		this.readConsistency = readConsistency;
+		this.writeConsistency = writeConsistency;
+	}
+
+	public ConsistencyLevel getReadConsistency() {
+		return readConsistency;
+	}
+
+	public ConsistencyLevel getWriteConsistency() {
+		return writeConsistency;
+	}
+
+	@Override
+	public String toString() {
+		return "ConsistencyPolicy [read=" + readConsistency + ", write=" + writeConsistency + "]";
+	}
+}
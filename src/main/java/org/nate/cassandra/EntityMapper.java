@@ -0,0 +1,52 @@
+package org.nate.cassandra;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+
+/**
+ * Converts between the columns of a row and an entity object.  A reflective mapper is built
+ * once per class from its {@link EntityMetadata}; classes on a hot path can register a hand 
+ * written mapper instead.
+ */
+public abstract class EntityMapper<T> {
+
+	private static final ConcurrentMap<Class<?>, EntityMapper<?>> mappers = new ConcurrentHashMap<Class<?>, EntityMapper<?>>();
+
+	@SuppressWarnings("unchecked")
+	public static <T> EntityMapper<T> forClass(Class<T> clazz) {
+		EntityMapper<T> mapper = (EntityMapper<T>) mappers.get(clazz);
+		if (mapper == null) {
+			EntityMapper<T> built = new ReflectiveEntityMapper<T>(EntityMetadata.forClass(clazz));
+			mapper = (EntityMapper<T>) mappers.putIfAbsent(clazz, built);
+			if (mapper == null) {
+				mapper = built;
+			}
+		}
+		return mapper;
+	}
+
+	public static <T> void register(Class<T> clazz, EntityMapper<T> mapper) {
+		mappers.put(clazz, mapper);
+	}
+
+	/**
+	 * Drops the mapper registered or built for the class, the next lookup builds a reflective one.
+	 */
+	public static void unregister(Class<?> clazz) {
+		mappers.remove(clazz);
+	}
+
+	/**
+	 * Builds an entity from the columns of a row.  Columns that do not map to a field are ignored.
+	 */
+	public abstract T fromColumns(String key, List<ColumnOrSuperColumn> columns) throws Exception;
+
+	/**
+	 * @return a column for every non-null mapped field of the entity, all with the given timestamp
+	 */
+	public abstract List<Column> toColumns(T entity, long timestamp) throws Exception;
+}
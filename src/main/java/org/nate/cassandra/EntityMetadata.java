@@ -0,0 +1,362 @@
+package org.nate.cassandra;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.nate.cassandra.annotation.Column;
+import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.annotation.Indexed;
+import org.nate.cassandra.annotation.Key;
+import org.nate.cassandra.annotation.Lazy;
+import org.nate.cassandra.serializer.Serializer;
+import org.nate.cassandra.serializer.Serializers;
+
+/**
+ * Everything the mapping code needs to know about an entity class, worked out once per class
+ * and cached for the life of the class loader.
+ */
+public class EntityMetadata {
+
+	private static final ConcurrentMap<Class<?>, EntityMetadata> registry = new ConcurrentHashMap<Class<?>, EntityMetadata>();
+
+	private final Class<?> entityClass;
+	private final boolean columnFamily;
+	private final String columnFamilyName;
+	private final ConsistencyLevel readConsistency;
+	private final ConsistencyLevel writeConsistency;
+	private final Field keyField;
+	private final Constructor<?> constructor;
+	private final List<ColumnMetadata> columns;
+	private final Map<String, ColumnMetadata> columnsByName;
+	private final Map<String, ColumnMetadata> columnsByFieldName;
+	private final ColumnMetadata[][] columnsByNameBytes;
+	private final List<byte[]> eagerColumnNames;
+	private final List<ColumnMetadata> indexedColumns;
+
+	public static EntityMetadata forClass(Class<?> clazz) {
+		EntityMetadata metadata = registry.get(clazz);
+		if (metadata == null) {
+			EntityMetadata introspected = new EntityMetadata(clazz);
+			metadata = registry.putIfAbsent(clazz, introspected);
+			if (metadata == null) {
+				metadata = introspected;
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Like {@link #forClass(Class)}, but rejects classes that are not annotated as a ColumnFamily.
+	 */
+	public static EntityMetadata forColumnFamily(Class<?> clazz) {
+		EntityMetadata metadata = forClass(clazz);
+		if (!metadata.isColumnFamily()) {
+			throw new IllegalArgumentException("Class " + clazz.getName() + " is not a ColumnFamily");
+		}
+		return metadata;
+	}
+
+	private EntityMetadata(Class<?> clazz) {
+		this.entityClass = clazz;
+		ColumnFamily columnFamilyAnnotation = clazz.getAnnotation(ColumnFamily.class);
+		this.columnFamily = columnFamilyAnnotation != null;
+		this.columnFamilyName = columnFamilyAnnotation != null && columnFamilyAnnotation.name().length() > 0 ? columnFamilyAnnotation.name() : clazz.getSimpleName();
+		this.readConsistency = columnFamilyAnnotation != null ? consistencyLevel(clazz, columnFamilyAnnotation.readConsistency()) : null;
+		this.writeConsistency = columnFamilyAnnotation != null ? consistencyLevel(clazz, columnFamilyAnnotation.writeConsistency()) : null;
+
+		Field foundKeyField = null;
+		List<ColumnMetadata> foundColumns = new ArrayList<ColumnMetadata>();
+		Map<String, ColumnMetadata> byName = new HashMap<String, ColumnMetadata>();
+		Map<String, ColumnMetadata> byFieldName = new HashMap<String, ColumnMetadata>();
+		for (Field field : clazz.getDeclaredFields()) {
+			if (field.isAnnotationPresent(Key.class) && foundKeyField == null) {
+				field.setAccessible(true);
+				foundKeyField = field;
+			}
+			Column columnAnnotation = field.getAnnotation(Column.class);
+			if (columnAnnotation != null) {
+				field.setAccessible(true);
+				Serializer<Object> serializer = columnAnnotation.serializer() == Serializer.class ? Serializers.forType(field.getType()) : Serializers.instanceOf(columnAnnotation.serializer());
+				String columnName = columnAnnotation.name().length() > 0 ? columnAnnotation.name() : field.getName();
+				Indexed indexedAnnotation = field.getAnnotation(Indexed.class);
+				ColumnIndex index = indexedAnnotation == null ? null : new ColumnIndex(indexedAnnotation.columnFamily(), columnFamilyName + ":" + columnName, field.getType());
+				ColumnMetadata column = new ColumnMetadata(field, columnName, serializer, field.isAnnotationPresent(Lazy.class), index);
+				foundColumns.add(column);
+				byName.put(column.getName(), column);
+				byFieldName.put(field.getName(), column);
+			}
+		}
+		this.keyField = foundKeyField;
+		this.columns = Collections.unmodifiableList(foundColumns);
+		this.columnsByName = byName;
+		this.columnsByFieldName = byFieldName;
+		this.columnsByNameBytes = hashByNameBytes(foundColumns);
+		this.eagerColumnNames = eagerColumnNames(foundColumns);
+		if (eagerColumnNames != null && eagerColumnNames.isEmpty()) {
+			// a get would ask for no columns at all and read every existing row as missing
+			throw new IllegalArgumentException("Class " + clazz.getName() + " has only Lazy columns, at least one must be read eagerly");
+		}
+		List<ColumnMetadata> foundIndexedColumns = new ArrayList<ColumnMetadata>();
+		for (ColumnMetadata column : foundColumns) {
+			if (column.isIndexed()) {
+				foundIndexedColumns.add(column);
+			}
+		}
+		this.indexedColumns = Collections.unmodifiableList(foundIndexedColumns);
+
+		Constructor<?> noArgConstructor = null;
+		try {
+			noArgConstructor = clazz.getDeclaredConstructor();
+			noArgConstructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			// only needed when reading, newInstance reports it
+		}
+		this.constructor = noArgConstructor;
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	public boolean isColumnFamily() {
+		return columnFamily;
+	}
+
+	public String getColumnFamilyName() {
+		return columnFamilyName;
+	}
+
+	/**
+	 * @return the consistency level named on the ColumnFamily for reads, or null
+	 */
+	public ConsistencyLevel getReadConsistency() {
+		return readConsistency;
+	}
+
+	/**
+	 * @return the consistency level named on the ColumnFamily for writes, or null
+	 */
+	public ConsistencyLevel getWriteConsistency() {
+		return writeConsistency;
+	}
+
+	public boolean hasKey() {
+		return keyField != null;
+	}
+
+	public Object getKey(Object entity) {
+		if (keyField == null) {
+			throw new IllegalArgumentException("Class " + entityClass.getName() + " has no Key field");
+		}
+		try {
+			return keyField.get(entity);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void setKey(Object entity, Object key) {
+		if (keyField == null) {
+			throw new IllegalArgumentException("Class " + entityClass.getName() + " has no Key field");
+		}
+		try {
+			keyField.set(entity, key);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Object newInstance() throws Exception {
+		if (constructor == null) {
+			throw new IllegalArgumentException("Class " + entityClass.getName() + " has no no-argument constructor");
+		}
+		return constructor.newInstance(new Object[]{});
+	}
+
+	public List<ColumnMetadata> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the column stored under the given name, or null when no field maps to it
+	 */
+	public ColumnMetadata getColumn(String columnName) {
+		return columnsByName.get(columnName);
+	}
+
+	/**
+	 * Looks a column up by its encoded name without decoding it, so hydrating a row costs one 
+	 * hash of each returned column name.
+	 * 
+	 * @return the column stored under the given name, or null when no field maps to it
+	 */
+	public ColumnMetadata getColumn(byte[] columnName) {
+		ColumnMetadata[] bucket = columnsByNameBytes[Arrays.hashCode(columnName) & (columnsByNameBytes.length - 1)];
+		if (bucket != null) {
+			for (ColumnMetadata column : bucket) {
+				if (Arrays.equals(column.nameBytes, columnName)) {
+					return column;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the column mapped by the given field, or null when the field is not a Column
+	 */
+	public ColumnMetadata getColumnForField(String fieldName) {
+		return columnsByFieldName.get(fieldName);
+	}
+
+	/**
+	 * The names of the columns read by default, or null when no column is Lazy and the whole row is read.
+	 */
+	public List<byte[]> getEagerColumnNames() {
+		return eagerColumnNames;
+	}
+
+	public List<ColumnMetadata> getIndexedColumns() {
+		return indexedColumns;
+	}
+
+	private static ConsistencyLevel consistencyLevel(Class<?> clazz, String name) {
+		if (name.length() == 0) {
+			return null;
+		}
+		try {
+			return ConsistencyLevel.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown consistency level " + name + " on " + clazz.getName());
+		}
+	}
+
+	private static List<byte[]> eagerColumnNames(List<ColumnMetadata> columns) {
+		List<byte[]> names = new ArrayList<byte[]>();
+		boolean anyLazy = false;
+		for (ColumnMetadata column : columns) {
+			if (column.isLazy()) {
+				anyLazy = true;
+			} else {
+				names.add(column.getNameBytes());
+			}
+		}
+		return anyLazy ? Collections.unmodifiableList(names) : null;
+	}
+
+	private static ColumnMetadata[][] hashByNameBytes(List<ColumnMetadata> columns) {
+		int size = 1;
+		while (size < columns.size() * 2) {
+			size <<= 1;
+		}
+		ColumnMetadata[][] buckets = new ColumnMetadata[size][];
+		for (ColumnMetadata column : columns) {
+			int index = Arrays.hashCode(column.nameBytes) & (size - 1);
+			ColumnMetadata[] bucket = buckets[index];
+			if (bucket == null) {
+				buckets[index] = new ColumnMetadata[]{column};
+			} else {
+				ColumnMetadata[] grown = new ColumnMetadata[bucket.length + 1];
+				System.arraycopy(bucket, 0, grown, 0, bucket.length);
+				grown[bucket.length] = column;
+				buckets[index] = grown;
+			}
+		}
+		return buckets;
+	}
+
+	public static class ColumnMetadata {
+		private final Field field;
+		private final String name;
+		private final byte[] nameBytes;
+		private final Serializer<Object> serializer;
+		private final boolean lazy;
+		private final ColumnIndex index;
+
+		ColumnMetadata(Field field, String name, Serializer<Object> serializer, boolean lazy, ColumnIndex index) {
+			this.field = field;
+			this.name = name;
+			this.nameBytes = name.getBytes();
+			this.serializer = serializer;
+			this.lazy = lazy;
+			this.index = index;
+		}
+
+		public boolean isLazy() {
+			return lazy;
+		}
+
+		public boolean isIndexed() {
+			return index != null;
+		}
+
+		/**
+		 * @return the index of an Indexed column, or null
+		 */
+		ColumnIndex getIndex() {
+			return index;
+		}
+
+		public Field getField() {
+			return field;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The encoded column name.  Shared between calls, so it must not be modified.
+		 */
+		public byte[] getNameBytes() {
+			return nameBytes;
+		}
+
+		public Class<?> getType() {
+			return field.getType();
+		}
+
+		public Object get(Object entity) {
+			try {
+				return field.get(entity);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void set(Object entity, Object value) {
+			try {
+				field.set(entity, value);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Serializer<Object> getSerializer() {
+			if (serializer == null) {
+				throw new IllegalArgumentException("No serializer for " + field.getType().getName() + " field " + field.getName() + ", name one on its Column");
+			}
+			return serializer;
+		}
+
+		public byte[] toBytes(Object value) {
+			if (value == null) {
+				throw new IllegalArgumentException("Column " + name + " has no value");
+			}
+			return getSerializer().toBytes(value);
+		}
+
+		public Object fromBytes(byte[] value) {
+			return getSerializer().fromBytes(value);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package org.nate.cassandra;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+
+/**
+ * Walks a whole column family in key order, pageSize rows at a time.  Every page after the 
+ * first starts at the last row of the previous page, that row is dropped so each row is 
+ * returned once.
+ */
+abstract class KeyRangePager {
+
+	private final int pageSize;
+	private String startKey = "";
+	private boolean exhausted = false;
+
+	KeyRangePager(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		this.pageSize = pageSize;
+	}
+
+	boolean isExhausted() {
+		return exhausted;
+	}
+
+	/**
+	 * @return the next page of rows, which may be empty even before the range is exhausted when
+	 * the only row fetched was the one the previous page ended with
+	 */
+	List<KeySlice> nextPage() throws CassandraOperationException {
+		boolean firstPage = startKey.length() == 0;
+		KeyRange keyRange = new KeyRange(firstPage ? pageSize : pageSize + 1);
+		keyRange.setStart_key(startKey);
+		keyRange.setEnd_key("");
+
+		List<KeySlice> rows = fetch(keyRange);
+		String previousStartKey = startKey;
+		if (rows.size() < keyRange.getCount()) {
+			exhausted = true;
+		} else {
+			startKey = rows.get(rows.size() - 1).getKey();
+		}
+
+		if (!firstPage && !rows.isEmpty() && rows.get(0).getKey().equals(previousStartKey)) {
+			return rows.subList(1, rows.size());
+		}
+		return rows;
+	}
+
+	protected abstract List<KeySlice> fetch(KeyRange keyRange) throws CassandraOperationException;
+}
@@ -0,0 +1,22 @@
+package org.nate.cassandra;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads, so background work never keeps the JVM alive.
+ */
+class NamedThreadFactory implements ThreadFactory {
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	NamedThreadFactory(String name) {
+		this.name = name;
+	}
+
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,187 @@
+package org.nate.cassandra;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, in process cache of rows read through CassandraOperations, keyed by column family and
+ * row key.  Rows are evicted least recently used first once maxRows are cached and are dropped 
+ * ttlMillis after they were read, so rows written by other clients are seen within the TTL.  
+ * Writes through the CassandraOperations owning the cache drop the rows they touch.
+ * <p>
+ * The cache is split into segments with a lock each, so concurrent readers of different rows
+ * rarely wait on each other.  Cached values are shared between readers, entities are built 
+ * afresh from them on every hit but byte[] fields share the cached arrays and must not be modified.
+ */
+public class NearCache {
+
+	private final Segment[] segments;
+	private final long ttlMillis;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public NearCache(int maxRows, long ttlMillis) {
+		this(maxRows, ttlMillis, 16);
+	}
+
+	public NearCache(int maxRows, long ttlMillis, int concurrencyLevel) {
+		if (maxRows < 1 || ttlMillis < 1 || concurrencyLevel < 1) {
+			throw new IllegalArgumentException("Max rows, TTL and concurrency level must be at least 1");
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < maxRows) {
+			segmentCount <<= 1;
+		}
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment((maxRows + segmentCount - 1) / segmentCount);
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param variant which read of the row the value came from, since a row may be read in more
+	 * than one shape
+	 * @return the cached value, or null when it is not cached or has expired
+	 */
+	Object get(String columnFamilyName, String key, String variant) {
+		RowKey rowKey = new RowKey(columnFamilyName, key);
+		Segment segment = segmentFor(rowKey);
+		Object value = null;
+		synchronized (segment) {
+			CachedRow row = segment.get(rowKey);
+			if (row != null) {
+				if (row.expiresAt <= System.currentTimeMillis()) {
+					segment.remove(rowKey);
+				} else {
+					value = row.values.get(variant);
+				}
+			}
+		}
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Taken before reading a row, and handed back to {@link #put(String, String, String, Object, long)}
+	 * so a value read before a concurrent write is not cached after the write dropped the row.
+	 */
+	long version(String columnFamilyName, String key) {
+		Segment segment = segmentFor(new RowKey(columnFamilyName, key));
+		synchronized (segment) {
+			return segment.version;
+		}
+	}
+
+	void put(String columnFamilyName, String key, String variant, Object value, long version) {
+		RowKey rowKey = new RowKey(columnFamilyName, key);
+		Segment segment = segmentFor(rowKey);
+		synchronized (segment) {
+			if (segment.version != version) {
+				return;
+			}
+			CachedRow row = segment.get(rowKey);
+			if (row == null || row.expiresAt <= System.currentTimeMillis()) {
+				row = new CachedRow(System.currentTimeMillis() + ttlMillis);
+				segment.put(rowKey, row);
+			}
+			row.values.put(variant, value);
+		}
+	}
+
+	void invalidate(String columnFamilyName, String key) {
+		RowKey rowKey = new RowKey(columnFamilyName, key);
+		Segment segment = segmentFor(rowKey);
+		synchronized (segment) {
+			segment.version++;
+			segment.remove(rowKey);
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.version++;
+				segment.clear();
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private Segment segmentFor(RowKey rowKey) {
+		int hash = rowKey.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+	}
+
+	@SuppressWarnings("serial")
+	private static class Segment extends LinkedHashMap<RowKey, CachedRow> {
+		private final int maxRows;
+		private long version = 0;
+
+		Segment(int maxRows) {
+			super(16, 0.75f, true);
+			this.maxRows = maxRows;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<RowKey, CachedRow> eldest) {
+			return size() > maxRows;
+		}
+	}
+
+	private static class CachedRow {
+		private final long expiresAt;
+		private final Map<String, Object> values = new HashMap<String, Object>(4);
+
+		CachedRow(long expiresAt) {
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class RowKey {
+		private final String columnFamilyName;
+		private final String key;
+
+		RowKey(String columnFamilyName, String key) {
+			this.columnFamilyName = columnFamilyName;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof RowKey)) {
+				return false;
+			}
+			RowKey otherKey = (RowKey) other;
+			return key.equals(otherKey.key) && columnFamilyName.equals(otherKey.columnFamilyName);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * columnFamilyName.hashCode() + key.hashCode();
+		}
+	}
+}
@@ -1,13 +1,47 @@
 package org.nate.cassandra;
 
+import java.util.List;
+
 import org.apache.cassandra.thrift.Cassandra.Client;
 
 public abstract class Operation<T> {
 
 	private final Cassandra cassandra;
+	private final String routingKey;
+	private final List<String> preferredHosts;
 
 	public Operation(Cassandra cassandra) {
+		this(cassandra, null);
+	}
+	
+	public Operation(Cassandra cassandra, String routingKey) {
+		this(cassandra, routingKey, null);
+	}
+	
+	/**
+	 * @param preferredHosts hosts (names or addresses) to try before any other, e.g. the replicas
+	 * of a token range, or null to leave the choice to the host selection policy
+	 */
+	public Operation(Cassandra cassandra, String routingKey, List<String> preferredHosts) {
 		this.cassandra = cassandra;
+		this.routingKey = routingKey;
+		this.preferredHosts = preferredHosts;
+	}
+	
+	public String getRoutingKey() {
+		return routingKey;
+	}
+	
+	public List<String> getPreferredHosts() {
+		return preferredHosts;
+	}
+	
+	/**
+	 * Idempotent operations are transparently retried on another host when the host they 
+	 * were sent to fails.  Writes are not, since they may have been applied already.
+	 */
+	public boolean isIdempotent() {
+		return false;
 	}
 	
 	public Client client;
@@ -0,0 +1,140 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+
+/**
+ * The result of an asynchronous operation, completed once by whoever performs it.  Listeners 
+ * run when it completes, on the given executor or on the completing thread, which for the 
+ * async client is a selector thread that must not be kept busy.
+ */
+public class OperationFuture<T> implements Future<T> {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(OperationFuture.class);
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+	private volatile T value;
+	private volatile Throwable failure;
+	private volatile boolean cancelled = false;
+
+	public boolean set(T value) {
+		return complete(value, null, false);
+	}
+
+	public boolean setException(Throwable failure) {
+		if (failure == null) {
+			throw new IllegalArgumentException("Failure cannot be null");
+		}
+		return complete(null, failure, false);
+	}
+
+	/**
+	 * Completes the future as cancelled.  A request already sent is not recalled, its response 
+	 * is just dropped.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(null, null, true);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("Operation did not complete within " + timeout + " " + unit);
+		}
+		return report();
+	}
+
+	/**
+	 * Runs the listener on the completing thread, or right away when already complete.  It 
+	 * should be quick and must not block.
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	public void addListener(final Runnable listener, final Executor executor) {
+		addListener(new Runnable() {
+			public void run() {
+				executor.execute(listener);
+			}
+		});
+	}
+
+	/**
+	 * The value of a future that completed normally, or null.
+	 */
+	T getValue() {
+		return value;
+	}
+
+	/**
+	 * The failure of a future that completed exceptionally, or null.
+	 */
+	Throwable getFailure() {
+		return cancelled ? new CancellationException() : failure;
+	}
+
+	/**
+	 * Only the first completion wins, the outcome is recorded and the listeners taken in one step 
+	 * so racing completions cannot both succeed.
+	 */
+	private boolean complete(T value, Throwable failure, boolean cancelled) {
+		List<Runnable> toRun;
+		synchronized (this) {
+			if (listeners == null) {
+				return false;
+			}
+			this.value = value;
+			this.failure = failure;
+			this.cancelled = cancelled;
+			toRun = listeners;
+			listeners = null;
+		}
+		done.countDown();
+		for (Runnable listener : toRun) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				logger.warn("Operation listener failed", e);
+			}
+		}
+		return true;
+	}
+
+	private T report() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
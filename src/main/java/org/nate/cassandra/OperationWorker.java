@@ -1,33 +1,186 @@
 package org.nate.cassandra;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.transport.TTransportException;
 import org.nate.cassandra.connector.Connection;
+import org.nate.cassandra.connector.ConnectionPool;
 import org.slf4j.Logger;
 
 public class OperationWorker {
 	
 	private Logger logger = org.slf4j.LoggerFactory.getLogger(OperationWorker.class);
 	public Cassandra cassandra;
+	private volatile Executor executor;
+	private final AtomicReference<ExecutorService> defaultExecutor = new AtomicReference<ExecutorService>();
 	
 	public OperationWorker(Cassandra cassandra) {
 		this.cassandra = cassandra;
 	}
 
+	/**
+	 * Runs the operations handed to doAsync and doAll.  Each one holds its thread for the whole
+	 * round trip, so an executor starting a cheap thread per task suits this best, e.g. one of 
+	 * virtual threads on JVMs that have them.  By default a cached pool of daemon threads.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the executor set on this worker, or null when it uses its default
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Performs the operation on the executor.  Cancelling the future before the operation starts 
+	 * keeps it from running, after that it runs to completion and its result is dropped.
+	 */
+	public <T> OperationFuture<T> doAsync(final Operation<T> operation) {
+		final OperationFuture<T> future = new OperationFuture<T>();
+		try {
+			executor().execute(new Runnable() {
+				public void run() {
+					if (future.isDone()) {
+						return;
+					}
+					try {
+						future.set(doWork(operation));
+					} catch (RuntimeException e) {
+						future.setException(e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			future.setException(new CassandraOperationException("Unable to start operation", e));
+		}
+		return future;
+	}
+
+	/**
+	 * Performs the operations concurrently, each on a connection of its own, and returns their 
+	 * results in the same order.  When one fails the ones not started yet are cancelled and the 
+	 * failure is thrown.
+	 */
+	public <T> List<T> doAll(List<? extends Operation<T>> operations) throws CassandraOperationException {
+		List<OperationFuture<T>> pending = new ArrayList<OperationFuture<T>>(operations.size());
+		for (Operation<T> operation : operations) {
+			pending.add(doAsync(operation));
+		}
+		
+		List<T> results = new ArrayList<T>(operations.size());
+		try {
+			for (OperationFuture<T> result : pending) {
+				results.add(result.get());
+			}
+			return results;
+		} catch (ExecutionException e) {
+			cancelAll(pending);
+			if (e.getCause() instanceof CassandraOperationException) {
+				throw (CassandraOperationException) e.getCause();
+			}
+			throw new CassandraOperationException("Unable to perform operation", e.getCause());
+		} catch (InterruptedException e) {
+			cancelAll(pending);
+			Thread.currentThread().interrupt();
+			throw new CassandraOperationException("Interrupted while waiting for operations", e);
+		}
+	}
+
 	public <T> T doWork(Operation<T> operation) {
 		logger.debug("Performing specified Cassandra operation");
 		
-		Connection connection = null;
-		try {
-			connection = cassandra.getConnectionPool().getConnection();
-			logger.debug("Connection established");
-			operation.client = connection.getClient();
-			T result = operation.work();
-			return result;
-		} catch (Exception e) {
-			throw new CassandraOperationException("Unable to perform operation", e);
-		} finally {
-			cassandra.getConnectionPool().releaseConnection(connection);
-			logger.debug("Connection released");
+		ConnectionPool pool = cassandra.getConnectionPool();
+		Set<String> failedHosts = new HashSet<String>();
+		int attempt = 0;
+		while (true) {
+			Connection connection = null;
+			try {
+				connection = pool.getConnection(operation.getRoutingKey(), operation.getPreferredHosts(), failedHosts);
+				logger.debug("Connection established");
+				operation.client = connection.getClient();
+				T result = operation.work();
+				pool.reportSuccess(connection.getHost());
+				return result;
+			} catch (Exception e) {
+				if (connection != null) {
+					discardIfBroken(connection, e);
+				}
+				if (connection == null || !isHostFailure(e)) {
+					throw new CassandraOperationException("Unable to perform operation", e);
+				}
+				pool.reportFailure(connection.getHost());
+				failedHosts.add(connection.getHost());
+				
+				// only reads are safe to replay, a write may have been applied before the failure
+				if (!operation.isIdempotent() || attempt >= pool.getMaxFailoverAttempts() || failedHosts.size() >= pool.getHostCount()) {
+					throw new CassandraOperationException("Unable to perform operation", e);
+				}
+				attempt++;
+				logger.debug("Host " + connection.getHost() + " failed, retrying on another host (attempt " + attempt + ")");
+			} finally {
+				pool.releaseConnection(connection);
+				logger.debug("Connection released");
+			}
 		}
+	}
 
+	private <T> void cancelAll(List<OperationFuture<T>> pending) {
+		for (OperationFuture<T> result : pending) {
+			result.cancel(false);
+		}
+	}
+
+	private Executor executor() {
+		if (executor != null) {
+			return executor;
+		}
+		ExecutorService created = defaultExecutor.get();
+		if (created == null) {
+			created = Executors.newCachedThreadPool(new NamedThreadFactory("cassandra-operation"));
+			if (!defaultExecutor.compareAndSet(null, created)) {
+				created.shutdown();
+				created = defaultExecutor.get();
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Transport errors and coordinator timeouts point at the host we talked to, everything
+	 * else (bad requests, missing columns, unavailable replicas) would fail anywhere.
+	 */
+	private boolean isHostFailure(Exception e) {
+		return e instanceof TTransportException || e instanceof TimedOutException;
+	}
+
+	/**
+	 * Only an exception the server sent back whole (an application exception or one declared by
+	 * the Cassandra interface) leaves the socket at a message boundary.  After anything else it 
+	 * may be mid-message, so it is never handed back out to another caller.
+	 */
+	private void discardIfBroken(Connection connection, Exception e) {
+		boolean fullyRead = e instanceof TApplicationException || e instanceof TBase;
+		if (!fullyRead && connection.isOpen()) {
+			logger.debug("Failure mid-call, discarding connection to " + connection.getHost());
+			try {
+				connection.closeConnection();
+			} catch (CassandraOperationException closeFailure) {
+				logger.debug("Unable to close failed connection", closeFailure);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
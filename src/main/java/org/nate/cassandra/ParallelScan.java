@@ -0,0 +1,116 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.nate.cassandra.connector.TokenRing;
+import org.nate.functions.functors.ActionFn;
+import org.slf4j.Logger;
+
+/**
+ * Scans a column family by splitting it along the token ranges reported by describe_ring and
+ * paging through each range with get_range_slices on its own thread and pooled connection,
+ * preferably one to a replica of the range.
+ * Rows are handed to the sink from several threads at once and in no particular order.
+ */
+class ParallelScan<T> {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(ParallelScan.class);
+	private final CassandraOperations cassandra;
+	private final Class<T> clazz;
+	private final String columnFamilyName;
+	private final SlicePredicate slicePredicate;
+	private final int pageSize;
+
+	ParallelScan(CassandraOperations cassandra, Class<T> clazz, String columnFamilyName, SlicePredicate slicePredicate, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		this.cassandra = cassandra;
+		this.clazz = clazz;
+		this.columnFamilyName = columnFamilyName;
+		this.slicePredicate = slicePredicate;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return the number of rows handed to the sink
+	 */
+	long run(final TokenRing ring, final ActionFn<T> sink, int parallelism) throws CassandraOperationException {
+		List<TokenRange> ranges = ring.getRanges();
+		if (ranges.isEmpty()) {
+			throw new CassandraOperationException("describe_ring returned no token ranges");
+		}
+
+		final AtomicLong scanned = new AtomicLong();
+		ExecutorService scanners = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, ranges.size())), new NamedThreadFactory("cassandra-parallel-scan"));
+		try {
+			List<Future<Void>> rangeScans = new ArrayList<Future<Void>>();
+			for (final TokenRange range : ranges) {
+				rangeScans.add(scanners.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						scanned.addAndGet(scanRange(ring, range, sink));
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> rangeScan : rangeScans) {
+				try {
+					rangeScan.get();
+				} catch (ExecutionException e) {
+					for (Future<Void> other : rangeScans) {
+						other.cancel(true);
+					}
+					throw new CassandraOperationException("Parallel scan of " + columnFamilyName + " failed", e.getCause());
+				}
+			}
+			return scanned.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CassandraOperationException("Interrupted during parallel scan of " + columnFamilyName, e);
+		} finally {
+			scanners.shutdownNow();
+		}
+	}
+
+	/**
+	 * Token ranges are (start, end], so after each page the token of its last key becomes the
+	 * exclusive start of the next one.
+	 */
+	private long scanRange(TokenRing ring, TokenRange range, ActionFn<T> sink) throws Exception {
+		long scanned = 0;
+		String startToken = range.getStart_token();
+		while (!Thread.currentThread().isInterrupted()) {
+			KeyRange keyRange = new KeyRange(pageSize);
+			keyRange.setStart_token(startToken);
+			keyRange.setEnd_token(range.getEnd_token());
+
+			List<KeySlice> rows = cassandra.getRangeSlices(clazz, slicePredicate, keyRange, range.getEndpoints());
+			for (KeySlice row : rows) {
+				Object mapped = cassandra.mapRow(clazz, row.getKey(), row.getColumns());
+				if (mapped != null) {
+					sink.apply(clazz.cast(mapped));
+					scanned++;
+				}
+			}
+
+			if (rows.size() < pageSize) {
+				break;
+			}
+			startToken = ring.tokenStringFor(rows.get(rows.size() - 1).getKey());
+		}
+		logger.debug("Scanned " + scanned + " rows of " + columnFamilyName + " in range (" + range.getStart_token() + ", " + range.getEnd_token() + "]");
+		return scanned;
+	}
+}
@@ -1,114 +1,274 @@
 package org.nate.cassandra;
 
-import java.util.Collection;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ColumnOrSuperColumn;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.KeyRange;
 import org.apache.cassandra.thrift.KeySlice;
 import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.commons.lang.StringUtils;
-import org.nate.cassandra.annotation.ColumnFamily;
-import org.nate.functions.functors.FilterFn;
-import org.nate.functions.functors.ListFunctions;
-import org.nate.functions.functors.TransformFn;
-import org.nate.functions.functors.exceptions.FunctorException;
-import org.nate.functions.options.Option;
+import org.apache.cassandra.thrift.SliceRange;
+import org.nate.cassandra.EntityMetadata.ColumnMetadata;
 import org.nate.functions.tuple.Triplet;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
 
+/**
+ * Runs every triplet of a query against one paged scan of the column family.  Each page reads
+ * only the columns the entity needs plus the queried ones, the triplets are evaluated against
+ * the decoded values as the rows arrive and matching rows are hydrated from the columns already
+ * read, so a query costs one pass over the column family and no further reads.
+ * 
+ * When every triplet compares an Indexed column with EQUAL or one of the range conditionals, the
+ * candidate keys are read from the indexes instead and only those rows are fetched and checked.
+ */
 public class Query<T> {
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private Cassandra cassandra;
-	private CassandraOperationUtils opUtils = new CassandraOperationUtils();
 	private OperationWorker worker;
+	private CassandraOperationUtils opUtils = new CassandraOperationUtils();
+	private int pageSize = 100;
 	
 	public Query(Cassandra cassandra) {
 		this.cassandra = cassandra;
 		this.worker = new OperationWorker(cassandra);
 	}
 	
+	/**
+	 * Rows are returned once, grouped by the first triplet they match in the order the triplets
+	 * were given.  Within each group rows are in key order, or in value order when the indexes 
+	 * are used.
+	 */
 	public ResultSet<T> execute(final Class<T> clazz, final Triplet<String, QueryConditional, String>... queryArgs) throws CassandraOperationException {
 		if (queryArgs == null || queryArgs.length == 0) {
 			throw new CassandraOperationException("You must provide at least one query argument triplet");
 		}
 		
 		try {
-			ResultSet<T> consolidatedResults = new ResultSet<T>();
-			for (final Triplet<String, QueryConditional, String> queryArg : queryArgs) {
-				if (clazz.isAnnotationPresent(ColumnFamily.class)) {
-					final String columnFamilyName = opUtils.determineColumnFamily(clazz);
-					final SlicePredicate queryPredicate = new SlicePredicate();
-					queryPredicate.setColumn_names(Lists.newArrayList(queryArg._1.getBytes()));
-				
-					final KeyRange keys = new KeyRange();
-					keys.setStart_key("");
-					keys.setEnd_key("");
-				
-					List<KeySlice> sliceResults = worker.doWork(new Operation<List<KeySlice>>(cassandra){
-						public List<KeySlice> work() throws Exception {
-							return client.get_range_slices(cassandra.getKeyspaceName(), new ColumnParent(columnFamilyName), queryPredicate, keys, ConsistencyLevel.ALL);
-						}					
-					});
-				
-					List<KeySlice> filteredSlices = ListFunctions.filter(sliceResults, new FilterFn<KeySlice>() {
-						public boolean apply(KeySlice it) throws FunctorException {
-							Option<ColumnOrSuperColumn> valueExistsOption = ListFunctions.find(it.getColumns(), new FilterFn<ColumnOrSuperColumn>(){
-								public boolean apply(ColumnOrSuperColumn it) throws FunctorException {
-									boolean exists = false;
-									String stringRepresentationOfValue = new String(it.getColumn().getValue());
-									Integer numericRepresentationOfValue = null;
-									if (StringUtils.isNumeric(stringRepresentationOfValue)) {
-										numericRepresentationOfValue = new Integer(stringRepresentationOfValue);
-									}
-									switch (queryArg._2) {
-										case EQUAL:
-											exists = stringRepresentationOfValue.equals(queryArg._3);
-											break;
-										case GREATER_THAN:
-											exists = (numericRepresentationOfValue > new Integer(queryArg._3));
-											break;
-										case GREATER_THAN_EQUAL_TO:
-											exists = (numericRepresentationOfValue >= new Integer(queryArg._3));
-											break;
-										case LESS_THAN_EQUAL_TO:
-											exists = (numericRepresentationOfValue <= new Integer(queryArg._3));
-											break;
-										case LESS_THAN:
-											exists = (numericRepresentationOfValue < new Integer(queryArg._3));
-											break;
-										case NOT_EQUAL:
-											exists = !stringRepresentationOfValue.equals(queryArg._3);
-											break;
-										default:
-											exists = stringRepresentationOfValue.equals(queryArg._3);
-											break;
-									}
-									return exists;
-								}					
-							});
-						return valueExistsOption.isSome();
+			EntityMetadata metadata = EntityMetadata.forClass(clazz);
+			if (!metadata.isColumnFamily()) {
+				throw new IllegalArgumentException(Joiner.on(" ").join("Class", clazz.getName(), "is not a ColumnFamily"));
+			}
+			
+			List<Condition> conditions = new ArrayList<Condition>();
+			for (Triplet<String, QueryConditional, String> queryArg : queryArgs) {
+				conditions.add(new Condition(metadata, queryArg));
+			}
+			
+			List<List<T>> matchesByCondition = new ArrayList<List<T>>();
+			for (int i = 0; i < conditions.size(); i++) {
+				matchesByCondition.add(new ArrayList<T>());
+			}
+			
+			EntityMapper<T> mapper = EntityMapper.forClass(clazz);
+			SlicePredicate slicePredicate = predicateFor(metadata, conditions);
+			ConsistencyLevel consistency = cassandra.getReadConsistency(clazz);
+			List<SliceRange> indexRanges = indexRangesFor(conditions);
+			if (indexRanges != null) {
+				Set<String> candidateKeys = new LinkedHashSet<String>();
+				for (int i = 0; i < conditions.size(); i++) {
+					candidateKeys.addAll(indexedKeys(conditions.get(i).column.getIndex(), indexRanges.get(i), consistency));
+				}
+				List<String> keys = new ArrayList<String>(candidateKeys);
+				for (int start = 0; start < keys.size(); start += pageSize) {
+					List<String> batch = keys.subList(start, Math.min(start + pageSize, keys.size()));
+					Map<String, List<ColumnOrSuperColumn>> rows = multiget(metadata.getColumnFamilyName(), slicePredicate, consistency, batch);
+					for (String key : batch) {
+						List<ColumnOrSuperColumn> columns = rows.get(key);
+						if (columns != null) {
+							addMatch(metadata, mapper, conditions, matchesByCondition, key, columns);
 						}
-					});
-					
-					consolidatedResults.results.addAll((Collection<? extends T>) ListFunctions.transform(filteredSlices, new TransformFn<Object, KeySlice>(){
-						public Object apply(KeySlice it) throws FunctorException {
-							return cassandra.get(clazz, it.getKey());
-						}				
-					}));
-					
-				} else {
-					throw new IllegalArgumentException(Joiner.on(" ").join("Class", clazz.getName(), "is not a ColumnFamily"));
+					}
+				}
+			} else {
+				KeyRangePager pager = pagerFor(metadata.getColumnFamilyName(), slicePredicate, consistency);
+				while (!pager.isExhausted()) {
+					for (KeySlice row : pager.nextPage()) {
+						addMatch(metadata, mapper, conditions, matchesByCondition, row.getKey(), row.getColumns());
+					}
 				}
 			}
+			
+			ResultSet<T> consolidatedResults = new ResultSet<T>();
+			for (List<T> matches : matchesByCondition) {
+				consolidatedResults.results.addAll(matches);
+			}
 			return consolidatedResults;
 		} catch (Exception e) {
 			throw new CassandraOperationException("Query operation failed", e);
 		}
 	}
 
+	private void addMatch(EntityMetadata metadata, EntityMapper<T> mapper, List<Condition> conditions, List<List<T>> matchesByCondition, String key, List<ColumnOrSuperColumn> columns) throws Exception {
+		for (int i = 0; i < conditions.size(); i++) {
+			if (conditions.get(i).matches(metadata, columns)) {
+				matchesByCondition.get(i).add(mapper.fromColumns(key, columns));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the index slice of each condition, or null when any of them cannot use an index
+	 */
+	private List<SliceRange> indexRangesFor(List<Condition> conditions) {
+		List<SliceRange> ranges = new ArrayList<SliceRange>();
+		for (Condition condition : conditions) {
+			SliceRange range = condition.column.isIndexed() ? condition.column.getIndex().rangeFor(condition.conditional, condition.operand, pageSize) : null;
+			if (range == null) {
+				return null;
+			}
+			ranges.add(range);
+		}
+		return ranges;
+	}
+
+	/**
+	 * Pages through a slice of an index row.  Every page after the first starts at the last entry of 
+	 * the previous one, which is skipped.
+	 */
+	private List<String> indexedKeys(final ColumnIndex index, SliceRange range, final ConsistencyLevel consistency) throws CassandraOperationException {
+		List<String> keys = new ArrayList<String>();
+		byte[] start = range.getStart();
+		boolean firstPage = true;
+		while (true) {
+			final SlicePredicate slicePredicate = new SlicePredicate();
+			slicePredicate.setSlice_range(new SliceRange(start, range.getFinish(), false, firstPage ? pageSize : pageSize + 1));
+			List<ColumnOrSuperColumn> entries = worker.doWork(new ReadOperation<List<ColumnOrSuperColumn>>(cassandra, index.getRowKey()) {
+				public List<ColumnOrSuperColumn> work() throws Exception {
+					return client.get_slice(cassandra.getKeyspaceName(), index.getRowKey(), new ColumnParent(index.getColumnFamilyName()), slicePredicate, consistency);
+				}
+			});
+			for (ColumnOrSuperColumn entry : entries) {
+				if (firstPage || !Arrays.equals(entry.getColumn().getName(), start)) {
+					keys.add(new String(entry.getColumn().getValue(), UTF8));
+				}
+			}
+			if (entries.size() < slicePredicate.getSlice_range().getCount()) {
+				return keys;
+			}
+			start = entries.get(entries.size() - 1).getColumn().getName();
+			firstPage = false;
+		}
+	}
+
+	private Map<String, List<ColumnOrSuperColumn>> multiget(final String columnFamilyName, final SlicePredicate slicePredicate, final ConsistencyLevel consistency, final List<String> keys) throws CassandraOperationException {
+		return worker.doWork(new ReadOperation<Map<String, List<ColumnOrSuperColumn>>>(cassandra, keys.get(0)) {
+			public Map<String, List<ColumnOrSuperColumn>> work() throws Exception {
+				return client.multiget_slice(cassandra.getKeyspaceName(), keys, new ColumnParent(columnFamilyName), slicePredicate, consistency);
+			}
+		});
+	}
+
+	public void setPageSize(int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Reads the whole row when the entity has no Lazy columns, otherwise its eager columns and 
+	 * whichever Lazy columns are queried.
+	 */
+	private SlicePredicate predicateFor(EntityMetadata metadata, List<Condition> conditions) {
+		if (metadata.getEagerColumnNames() == null) {
+			return opUtils.createEmptySlicePredicate();
+		}
+		List<byte[]> columnNames = new ArrayList<byte[]>(metadata.getEagerColumnNames());
+		for (Condition condition : conditions) {
+			if (condition.column.isLazy() && !columnNames.contains(condition.column.getNameBytes())) {
+				columnNames.add(condition.column.getNameBytes());
+			}
+		}
+		return opUtils.createColumnNamePredicate(columnNames);
+	}
+
+	private KeyRangePager pagerFor(final String columnFamilyName, final SlicePredicate slicePredicate, final ConsistencyLevel consistency) {
+		return new KeyRangePager(pageSize) {
+			protected List<KeySlice> fetch(final KeyRange keyRange) throws CassandraOperationException {
+				return worker.doWork(new ReadOperation<List<KeySlice>>(cassandra) {
+					public List<KeySlice> work() throws Exception {
+						return client.get_range_slices(cassandra.getKeyspaceName(), new ColumnParent(columnFamilyName), slicePredicate, keyRange, consistency);
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * One triplet with its operand converted once to the type its column values are compared as,
+	 * see {@link ColumnIndex#comparable(Object)}.  A row without the column never matches.
+	 */
+	private static class Condition {
+		private final ColumnMetadata column;
+		private final QueryConditional conditional;
+		private final Comparable<Object> operand;
+
+		Condition(EntityMetadata metadata, Triplet<String, QueryConditional, String> queryArg) {
+			ColumnMetadata queriedColumn = metadata.getColumnForField(queryArg._1);
+			if (queriedColumn == null) {
+				queriedColumn = metadata.getColumn(queryArg._1);
+			}
+			if (queriedColumn == null) {
+				throw new IllegalArgumentException(Joiner.on(" ").join("Class", metadata.getEntityClass().getName(), "has no Column", queryArg._1));
+			}
+			this.column = queriedColumn;
+			this.conditional = queryArg._2;
+			this.operand = operandFor(queriedColumn.getType(), queryArg._3);
+		}
+
+		boolean matches(EntityMetadata metadata, List<ColumnOrSuperColumn> columns) {
+			for (ColumnOrSuperColumn columnOrSuperColumn : columns) {
+				Column found = columnOrSuperColumn.getColumn();
+				if (found != null && metadata.getColumn(found.getName()) == column) {
+					Comparable<Object> value = ColumnIndex.comparable(column.fromBytes(found.getValue()));
+					return value != null && matches(value.compareTo(operand));
+				}
+			}
+			return false;
+		}
+
+		private boolean matches(int comparison) {
+			switch (conditional) {
+				case GREATER_THAN:
+					return comparison > 0;
+				case GREATER_THAN_EQUAL_TO:
+					return comparison >= 0;
+				case LESS_THAN_EQUAL_TO:
+					return comparison <= 0;
+				case LESS_THAN:
+					return comparison < 0;
+				case NOT_EQUAL:
+					return comparison != 0;
+				default:
+					return comparison == 0;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Comparable<Object> operandFor(Class<?> type, String operand) {
+			if (type == Boolean.class || type == boolean.class) {
+				return (Comparable) Boolean.valueOf(operand);
+			} else if (type == UUID.class) {
+				return (Comparable) UUID.fromString(operand);
+			} else if (Number.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type) || type.isPrimitive()) {
+				return (Comparable) new BigDecimal(operand);
+			}
+			return (Comparable) operand;
+		}
+	}
 }
@@ -0,0 +1,224 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+
+/**
+ * Lazily pages through every row of a column family with get_range_slices.  Each iterator
+ * starts its own scan, fetching pageSize rows at a time.  With a prefetchDepth above zero a
+ * background thread fetches up to that many pages ahead of the consumer, otherwise pages are
+ * fetched when the previous one has been consumed.  A prefetching iterator should be closed when 
+ * it is abandoned early, e.g. by breaking out of a for-each loop, otherwise its thread only gives 
+ * up once no page has been taken for abandonTimeout milliseconds.
+ */
+public class RangeScan<T> implements Iterable<T> {
+
+	private final CassandraOperations cassandra;
+	private final Class<T> clazz;
+	private final String columnFamilyName;
+	private final SlicePredicate slicePredicate;
+	private final int pageSize;
+	private final int prefetchDepth;
+	private final long abandonTimeout;
+
+	RangeScan(CassandraOperations cassandra, Class<T> clazz, String columnFamilyName, SlicePredicate slicePredicate, int pageSize, int prefetchDepth, long abandonTimeout) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		this.cassandra = cassandra;
+		this.clazz = clazz;
+		this.columnFamilyName = columnFamilyName;
+		this.slicePredicate = slicePredicate;
+		this.pageSize = pageSize;
+		this.prefetchDepth = prefetchDepth;
+		this.abandonTimeout = abandonTimeout;
+	}
+
+	public ScanIterator<T> iterator() {
+		Pager pager = new Pager();
+		if (prefetchDepth > 0) {
+			return new PrefetchingIterator<T>(pager, prefetchDepth, abandonTimeout);
+		}
+		return new ScanIterator<T>(pager);
+	}
+
+	/**
+	 * Tracks the position of one scan and maps the rows of each page.
+	 */
+	class Pager extends KeyRangePager {
+
+		Pager() {
+			super(pageSize);
+		}
+
+		@Override
+		protected List<KeySlice> fetch(KeyRange keyRange) throws CassandraOperationException {
+			return cassandra.getRangeSlices(clazz, slicePredicate, keyRange);
+		}
+
+		/**
+		 * @return the next non-empty page of entities, or an empty page once the range is exhausted
+		 */
+		List<T> nextEntities() throws CassandraOperationException {
+			List<T> page = new ArrayList<T>();
+			while (page.isEmpty() && !isExhausted()) {
+				for (KeySlice row : nextPage()) {
+					Object mapped;
+					try {
+						mapped = cassandra.mapRow(clazz, row.getKey(), row.getColumns());
+					} catch (Exception e) {
+						throw new CassandraOperationException("Unable to map row " + row.getKey(), e);
+					}
+					if (mapped != null) {
+						page.add(clazz.cast(mapped));
+					}
+				}
+			}
+			return page;
+		}
+	}
+
+	/**
+	 * Iterator over the rows of a scan.  Call close when abandoning an iterator before it is
+	 * exhausted so a prefetching scan can stop its background fetches.
+	 */
+	public static class ScanIterator<T> implements Iterator<T> {
+		private final RangeScan<T>.Pager pager;
+		private Iterator<T> current = Collections.<T>emptyList().iterator();
+
+		ScanIterator(RangeScan<T>.Pager pager) {
+			this.pager = pager;
+		}
+
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				List<T> page = nextPage();
+				if (page.isEmpty()) {
+					return false;
+				}
+				current = page.iterator();
+			}
+			return true;
+		}
+
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+		}
+
+		/**
+		 * @return the next non-empty page, or an empty page when the scan is finished
+		 */
+		List<T> nextPage() {
+			if (pager.isExhausted()) {
+				return Collections.<T>emptyList();
+			}
+			return pager.nextEntities();
+		}
+	}
+
+	private static class PrefetchingIterator<T> extends ScanIterator<T> {
+		private final BlockingQueue<List<T>> pages;
+		private final long abandonTimeout;
+		private volatile boolean closed = false;
+		private volatile boolean abandoned = false;
+		private volatile RuntimeException failure;
+		private boolean finished = false;
+
+		PrefetchingIterator(final RangeScan<T>.Pager pager, int prefetchDepth, long abandonTimeout) {
+			super(pager);
+			this.pages = new ArrayBlockingQueue<List<T>>(prefetchDepth);
+			this.abandonTimeout = abandonTimeout;
+			Thread fetcher = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (!pager.isExhausted() && !closed) {
+							List<T> page = pager.nextEntities();
+							if (!page.isEmpty()) {
+								put(page);
+							}
+						}
+					} catch (RuntimeException e) {
+						failure = e;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						try {
+							put(Collections.<T>emptyList());
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			}, "cassandra-range-scan");
+			fetcher.setDaemon(true);
+			fetcher.start();
+		}
+
+		private void put(List<T> page) throws InterruptedException {
+			long waitingSince = System.currentTimeMillis();
+			while (!pages.offer(page, 100L, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					return;
+				}
+				if (System.currentTimeMillis() - waitingSince >= abandonTimeout) {
+					// the iterator was most likely dropped without being closed, stop holding the thread
+					abandoned = true;
+					closed = true;
+					return;
+				}
+			}
+		}
+
+		@Override
+		List<T> nextPage() {
+			if (finished) {
+				return Collections.<T>emptyList();
+			}
+			try {
+				List<T> page = pages.poll(100L, TimeUnit.MILLISECONDS);
+				while (page == null) {
+					if (abandoned) {
+						throw new CassandraOperationException("Scan was abandoned after no page was taken for " + abandonTimeout + "ms");
+					}
+					page = pages.poll(100L, TimeUnit.MILLISECONDS);
+				}
+				if (page.isEmpty()) {
+					finished = true;
+					if (failure != null) {
+						throw failure;
+					}
+				}
+				return page;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CassandraOperationException("Interrupted while waiting for the next page", e);
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			pages.clear();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+
+/**
+ * Folds single row reads arriving within a short window into one multiget_slice.  The first 
+ * caller for a column family, predicate and consistency level opens a batch and waits up to 
+ * windowMillis for other callers to add their keys, or until maxBatchSize keys are waiting, then 
+ * reads them all on its own thread and hands each caller its row.  A read on its own therefore
+ * waits out the whole window.
+ */
+class ReadBatcher {
+
+	private final CassandraOperations cassandra;
+	private final long windowMillis;
+	private final int maxBatchSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Map<Object, Batch> open = new HashMap<Object, Batch>();
+
+	ReadBatcher(CassandraOperations cassandra, long windowMillis, int maxBatchSize) {
+		if (windowMillis < 1 || maxBatchSize < 1) {
+			throw new IllegalArgumentException("Window and batch size must be at least 1");
+		}
+		this.cassandra = cassandra;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param batchKey identifies the column family, predicate and consistency level, reads are only
+	 * batched with others of the same batch key
+	 * @return the columns of the row, empty when it does not exist
+	 */
+	List<ColumnOrSuperColumn> read(Object batchKey, String columnFamilyName, SlicePredicate slicePredicate, ConsistencyLevel consistency, String key) throws CassandraOperationException {
+		Batch batch;
+		boolean leader;
+		lock.lock();
+		try {
+			batch = open.get(batchKey);
+			leader = batch == null;
+			if (leader) {
+				batch = new Batch(lock.newCondition());
+				open.put(batchKey, batch);
+			}
+			batch.keys.add(key);
+			if (batch.keys.size() >= maxBatchSize) {
+				close(batchKey, batch);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (leader) {
+			lead(batchKey, batch, columnFamilyName, slicePredicate, consistency);
+		}
+		return batch.rowFor(key);
+	}
+
+	private void lead(Object batchKey, Batch batch, String columnFamilyName, SlicePredicate slicePredicate, ConsistencyLevel consistency) {
+		List<String> keys;
+		lock.lock();
+		try {
+			long remaining = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+			while (!batch.closed && remaining > 0) {
+				remaining = batch.full.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close(batchKey, batch);
+			keys = new ArrayList<String>(batch.keys);
+			lock.unlock();
+		}
+
+		boolean completed = false;
+		try {
+			batch.complete(cassandra.multigetColumns(columnFamilyName, slicePredicate, consistency, keys), null);
+			completed = true;
+		} catch (RuntimeException e) {
+			batch.complete(null, e);
+			completed = true;
+		} finally {
+			// an Error still propagates on this thread, but must not leave the other callers waiting
+			if (!completed) {
+				batch.complete(null, new CassandraOperationException("Batched read did not complete"));
+			}
+		}
+	}
+
+	private void close(Object batchKey, Batch batch) {
+		if (open.get(batchKey) == batch) {
+			open.remove(batchKey);
+		}
+		batch.closed = true;
+		batch.full.signal();
+	}
+
+	private static class Batch {
+		private final Set<String> keys = new LinkedHashSet<String>();
+		private final Condition full;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private boolean closed = false;
+		private volatile Map<String, List<ColumnOrSuperColumn>> rows;
+		private volatile RuntimeException failure;
+
+		Batch(Condition full) {
+			this.full = full;
+		}
+
+		void complete(Map<String, List<ColumnOrSuperColumn>> rows, RuntimeException failure) {
+			this.rows = rows;
+			this.failure = failure;
+			done.countDown();
+		}
+
+		List<ColumnOrSuperColumn> rowFor(String key) throws CassandraOperationException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CassandraOperationException("Interrupted while waiting for a batched read", e);
+			}
+			if (failure != null) {
+				throw new CassandraOperationException("Batched read failed", failure);
+			}
+			List<ColumnOrSuperColumn> row = rows.get(key);
+			return row == null ? Collections.<ColumnOrSuperColumn>emptyList() : row;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.nate.cassandra;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lets concurrent identical reads share one call.  The first caller for a key runs the read, 
+ * callers arriving while it is in flight wait for it and get the same result.  Nothing is kept 
+ * once the read completes, so a later caller always reads again.
+ * <p>
+ * Every write through the client bumps a version for the rows it touched, and a read only joins 
+ * one started at the same version, so a read issued after a write completed never gets a result 
+ * read before it.  Versions are kept per stripe of rows, a write to one row may therefore keep 
+ * reads of a few unrelated rows from being shared for a moment.
+ */
+class ReadCoalescer {
+
+	private static final int STRIPES = 256;
+	private final ConcurrentMap<Object, FutureTask<?>> inFlight = new ConcurrentHashMap<Object, FutureTask<?>>();
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	/**
+	 * Called once a write to the row has been sent, so later reads of it do not join earlier ones.
+	 */
+	void invalidate(Object rowKey) {
+		versions.incrementAndGet(stripeFor(rowKey));
+	}
+
+	/**
+	 * @param rowKey the row being read, as passed to {@link #invalidate(Object)} by writes
+	 * @param readKey identifies the read, only reads with equal keys are shared
+	 */
+	<T> T read(Object rowKey, Object readKey, Callable<T> read) throws CassandraOperationException {
+		return read(Arrays.asList(readKey, versions.get(stripeFor(rowKey))), read);
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T read(Object readKey, Callable<T> read) throws CassandraOperationException {
+		FutureTask<T> task = new FutureTask<T>(read);
+		FutureTask<T> shared = (FutureTask<T>) inFlight.putIfAbsent(readKey, task);
+		if (shared == null) {
+			shared = task;
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(readKey, task);
+			}
+		}
+		
+		try {
+			return shared.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CassandraOperationException) {
+				throw (CassandraOperationException) e.getCause();
+			}
+			throw new CassandraOperationException("Unable to perform read", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CassandraOperationException("Interrupted while waiting for a shared read", e);
+		}
+	}
+
+	private int stripeFor(Object rowKey) {
+		int hash = rowKey.hashCode();
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+}
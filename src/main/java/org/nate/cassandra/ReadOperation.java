@@ -0,0 +1,23 @@
+package org.nate.cassandra;
+
+import java.util.List;
+
+public abstract class ReadOperation<T> extends Operation<T> {
+
+	public ReadOperation(Cassandra cassandra) {
+		super(cassandra);
+	}
+	
+	public ReadOperation(Cassandra cassandra, String routingKey) {
+		super(cassandra, routingKey);
+	}
+	
+	public ReadOperation(Cassandra cassandra, String routingKey, List<String> preferredHosts) {
+		super(cassandra, routingKey, preferredHosts);
+	}
+
+	@Override
+	public boolean isIdempotent() {
+		return true;
+	}
+}
@@ -0,0 +1,55 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.nate.cassandra.EntityMetadata.ColumnMetadata;
+
+/**
+ * Default mapper, working from the fields, names and constructor resolved once by
+ * {@link EntityMetadata} so that mapping a row does no reflective lookups of its own.  Field
+ * values are still read and written with Field.get and Field.set, so a class whose mapping 
+ * cost matters should register a hand written mapper with {@link EntityMapper#register}.
+ */
+class ReflectiveEntityMapper<T> extends EntityMapper<T> {
+
+	private final EntityMetadata metadata;
+	private final ColumnMetadata[] columns;
+
+	ReflectiveEntityMapper(EntityMetadata metadata) {
+		this.metadata = metadata;
+		this.columns = metadata.getColumns().toArray(new ColumnMetadata[metadata.getColumns().size()]);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T fromColumns(String key, List<ColumnOrSuperColumn> rowColumns) throws Exception {
+		T entity = (T) metadata.newInstance();
+		metadata.setKey(entity, key);
+		for (ColumnOrSuperColumn it : rowColumns) {
+			Column rowColumn = it.getColumn();
+			ColumnMetadata column = metadata.getColumn(rowColumn.getName());
+			if (column != null) {
+				Object value = column.fromBytes(rowColumn.getValue());
+				if (value != null || !column.getType().isPrimitive()) {
+					column.set(entity, value);
+				}
+			}
+		}
+		return entity;
+	}
+
+	@Override
+	public List<Column> toColumns(T entity, long timestamp) throws Exception {
+		List<Column> rowColumns = new ArrayList<Column>(columns.length);
+		for (ColumnMetadata column : columns) {
+			Object value = column.get(entity);
+			if (value != null) {
+				rowColumns.add(new Column(column.getNameBytes(), column.toBytes(value), timestamp));
+			}
+		}
+		return rowColumns;
+	}
+}
@@ -1,154 +1,234 @@
 package org.nate.cassandra;
 
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import org.nate.functions.options.Option;
-
-import com.google.common.collect.Lists;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 public class ResultSet<T> { 
 
 	public List<T> results = new ArrayList<T>();
-	private CassandraOperationUtils opUtils = new CassandraOperationUtils();
 	
+	/**
+	 * @return the results of this set followed by those of the other set whose keys are not in
+	 * this one, each key once
+	 */
 	public ResultSet<T> or(ResultSet<T> other) throws IllegalArgumentException, IllegalAccessException {
-		ResultSet<T> sumSet = new ResultSet<T>();
-		sumSet.results.addAll(this.results);
-		for (T otherResult : other.results) {			
-			if (!matchedKeyValues(otherResult)) {
-				sumSet.results.add(otherResult);
+		Map<Object, T> union = resultsByKey(this.results);
+		for (Map.Entry<Object, T> otherResult : resultsByKey(other.results).entrySet()) {
+			if (!union.containsKey(otherResult.getKey())) {
+				union.put(otherResult.getKey(), otherResult.getValue());
 			}
 		}
+		ResultSet<T> sumSet = new ResultSet<T>();
+		sumSet.results.addAll(union.values());
 		return sumSet;
 	}
 	
+	/**
+	 * @return the results of the other set whose keys are also in this one, each key once
+	 */
 	public ResultSet<T> and(ResultSet<T> other) throws IllegalArgumentException, IllegalAccessException {
+		Set<Object> keys = resultsByKey(this.results).keySet();
 		ResultSet<T> sumSet = new ResultSet<T>();
-		for (T otherResult : other.results) {
-			if (matchedKeyValues(otherResult)) {
-				sumSet.results.add(otherResult);
+		for (Map.Entry<Object, T> otherResult : resultsByKey(other.results).entrySet()) {
+			if (keys.contains(otherResult.getKey())) {
+				sumSet.results.add(otherResult.getValue());
 			}
 		}
 		return sumSet;
 	}
 	
-	public ResultSet<T> ascendingBy(String fieldName) throws CassandraOperationException {
-		ResultSet<T> sortedResultSet = new ResultSet<T>();
-		sortedResultSet.results.addAll(this.results);
-		
+	/**
+	 * Sorts on the given fields, the first field first.  Results with equal keys keep their order
+	 * and results with a null key sort last.
+	 */
+	public ResultSet<T> ascendingBy(String... fieldNames) throws CassandraOperationException {
 		try {
-			if (!this.results.isEmpty()) {
-				Field sortOnField = sortedResultSet.results.get(0).getClass().getDeclaredField(fieldName);
-				Collections.sort(sortedResultSet.results, new AscendingSorter(sortOnField));
-			}
+			return sortedBy(fieldNames, false);
 		} catch (Exception e) {
 			throw new CassandraOperationException("Unable to sort result set ascending", e);
 		}
-		return sortedResultSet;
 	}
 	
-	public ResultSet<T> descendingBy(String fieldName) throws CassandraOperationException {
-		ResultSet<T> sortedResultSet = new ResultSet<T>();
-		sortedResultSet.results.addAll(this.results);
-		
+	public ResultSet<T> descendingBy(String... fieldNames) throws CassandraOperationException {
 		try {
-			if (!this.results.isEmpty()) {
-				Field sortOnField = sortedResultSet.results.get(0).getClass().getDeclaredField(fieldName);
-				Collections.sort(sortedResultSet.results, new DescendingSorter(sortOnField));
-			}
+			return sortedBy(fieldNames, true);
 		} catch (Exception e) {
 			throw new CassandraOperationException("Unable to sort result set descending", e);
 		}
+	}
+	
+	/**
+	 * The first k results of {@link #ascendingBy(String...)}, found with a heap of k results 
+	 * rather than by sorting them all.
+	 */
+	public ResultSet<T> topAscendingBy(int k, String... fieldNames) throws CassandraOperationException {
+		try {
+			return topBy(k, fieldNames, false);
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to select the top of result set ascending", e);
+		}
+	}
+	
+	public ResultSet<T> topDescendingBy(int k, String... fieldNames) throws CassandraOperationException {
+		try {
+			return topBy(k, fieldNames, true);
+		} catch (Exception e) {
+			throw new CassandraOperationException("Unable to select the top of result set descending", e);
+		}
+	}
+	
+	/**
+	 * @return the first k results
+	 */
+	public ResultSet<T> limit(int k) {
+		if (k < 0) {
+			throw new IllegalArgumentException("Limit cannot be negative");
+		}
+		ResultSet<T> limitedResultSet = new ResultSet<T>();
+		limitedResultSet.results.addAll(this.results.subList(0, Math.min(k, this.results.size())));
+		return limitedResultSet;
+	}
+	
+	private ResultSet<T> sortedBy(String[] fieldNames, boolean descending) throws Exception {
+		ResultSet<T> sortedResultSet = new ResultSet<T>();
+		if (!this.results.isEmpty()) {
+			SortField[] fields = sortFields(fieldNames);
+			List<Decorated<T>> decorated = new ArrayList<Decorated<T>>(this.results.size());
+			for (T result : this.results) {
+				decorated.add(new Decorated<T>(result, decorated.size(), fields));
+			}
+			Collections.sort(decorated, new DecoratedOrder<T>(fields, descending));
+			for (Decorated<T> each : decorated) {
+				sortedResultSet.results.add(each.result);
+			}
+		}
 		return sortedResultSet;
 	}
 	
-	private boolean matchedKeyValues(T otherResult) throws IllegalArgumentException, IllegalAccessException {
-		boolean found = false;
-		Option<Field> otherKeyOption = opUtils.keyFieldFor(Lists.newArrayList(otherResult.getClass().getDeclaredFields()));
-		if (otherKeyOption.isSome()) {
-			for (T thisResult : this.results) {
-				Option<Field> thisKeyOption = opUtils.keyFieldFor(Lists.newArrayList(thisResult.getClass().getDeclaredFields()));
-				if (thisKeyOption.isSome()) {
-					otherKeyOption.get().setAccessible(true);
-					thisKeyOption.get().setAccessible(true);
-					if (thisKeyOption.get().get(thisResult).equals(otherKeyOption.get().get(otherResult))) {
-						found = true;
-					}
+	private ResultSet<T> topBy(int k, String[] fieldNames, boolean descending) throws Exception {
+		if (k < 0) {
+			throw new IllegalArgumentException("Top cannot be negative");
+		}
+		ResultSet<T> topResultSet = new ResultSet<T>();
+		if (!this.results.isEmpty() && k > 0) {
+			SortField[] fields = sortFields(fieldNames);
+			DecoratedOrder<T> order = new DecoratedOrder<T>(fields, descending);
+			// the head of the heap is the last of the k results kept so far
+			PriorityQueue<Decorated<T>> top = new PriorityQueue<Decorated<T>>(Math.min(k, this.results.size()), Collections.reverseOrder(order));
+			int index = 0;
+			for (T result : this.results) {
+				Decorated<T> decorated = new Decorated<T>(result, index++, fields);
+				if (top.size() < k) {
+					top.add(decorated);
+				} else if (order.compare(decorated, top.peek()) < 0) {
+					top.poll();
+					top.add(decorated);
 				}
 			}
-		} else {
-			throw new IllegalArgumentException("The objects you are trying to perform operations on do not have keys");
+			List<Decorated<T>> sorted = new ArrayList<Decorated<T>>(top);
+			Collections.sort(sorted, order);
+			for (Decorated<T> each : sorted) {
+				topResultSet.results.add(each.result);
+			}
 		}
-		return found;
+		return topResultSet;
 	}
 	
-	private abstract class Sorter implements Comparator<T> {
-		protected Field field;
-
-		public Sorter(Field field) {
-			this.field = field;
+	private SortField[] sortFields(String[] fieldNames) throws NoSuchFieldException {
+		if (fieldNames.length == 0) {
+			throw new IllegalArgumentException("At least one field to sort on is required");
 		}
-		
-		abstract public int compare(T o1, T o2);	
+		SortField[] fields = new SortField[fieldNames.length];
+		for (int i = 0; i < fieldNames.length; i++) {
+			fields[i] = SortField.forField(this.results.get(0).getClass(), fieldNames[i]);
+		}
+		return fields;
 	}
 	
-	private class AscendingSorter extends Sorter {
-		
-		public AscendingSorter(Field field) {
-			super(field);
+	/**
+	 * Indexes results by key in their original order, keeping the first result for each key.
+	 */
+	private Map<Object, T> resultsByKey(List<T> results) {
+		Map<Object, T> byKey = new LinkedHashMap<Object, T>(results.size() * 4 / 3 + 1);
+		EntityMetadata metadata = null;
+		for (T result : results) {
+			if (metadata == null || metadata.getEntityClass() != result.getClass()) {
+				metadata = EntityMetadata.forClass(result.getClass());
+				if (!metadata.hasKey()) {
+					throw new IllegalArgumentException("The objects you are trying to perform operations on do not have keys");
+				}
+			}
+			Object key = metadata.getKey(result);
+			if (!byKey.containsKey(key)) {
+				byKey.put(key, result);
+			}
 		}
-
-		@Override
-		public int compare(T o1, T o2) {
-			try {
-				field.setAccessible(true);
-				Object fieldValue1 = field.get(o1);
-				Object fieldValue2 = field.get(o2);
-				
-				if (fieldValue1 instanceof String) {
-					return ((String) fieldValue1).compareToIgnoreCase((String) fieldValue2);
-				} else if (fieldValue1 instanceof Number){
-					return ((Number) fieldValue1).intValue() - ((Number) fieldValue2).intValue();
+		return byKey;
+	}
+	
+	/**
+	 * A result with its sort keys read once, and its position to keep sorts stable.
+	 */
+	private static class Decorated<T> {
+		private final T result;
+		private final int index;
+		private final long[] primitiveKeys;
+		private final Object[] objectKeys;
+		private final boolean[] nullKeys;
+		
+		Decorated(T result, int index, SortField[] fields) throws IllegalAccessException {
+			this.result = result;
+			this.index = index;
+			this.primitiveKeys = new long[fields.length];
+			this.objectKeys = new Object[fields.length];
+			this.nullKeys = new boolean[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				Object value = fields[i].get(result);
+				if (value == null) {
+					nullKeys[i] = true;
+				} else if (fields[i].isPrimitive()) {
+					primitiveKeys[i] = fields[i].primitiveKey(value);
 				} else {
-					return 0;
+					objectKeys[i] = fields[i].objectKey(value);
 				}
-			} catch (IllegalArgumentException e) {
-				return 0;
-			} catch (IllegalAccessException e) {
-				return 0;
 			}
-		}	
+		}
 	}
 	
-	private class DescendingSorter extends Sorter {
+	private static class DecoratedOrder<T> implements Comparator<Decorated<T>> {
+		private final SortField[] fields;
+		private final boolean descending;
 		
-		public DescendingSorter(Field field) {
-			super(field);
+		DecoratedOrder(SortField[] fields, boolean descending) {
+			this.fields = fields;
+			this.descending = descending;
 		}
-
-		@Override
-		public int compare(T o1, T o2) {
-			try {
-				field.setAccessible(true);
-				Object fieldValue1 = field.get(o1);
-				Object fieldValue2 = field.get(o2);
-				
-				if (fieldValue1 instanceof String) {
-					return ((String) fieldValue2).compareToIgnoreCase((String) fieldValue1);
-				} else if (fieldValue1 instanceof Number){
-					return ((Number) fieldValue2).intValue() - ((Number) fieldValue1).intValue();
+		
+		public int compare(Decorated<T> o1, Decorated<T> o2) {
+			for (int i = 0; i < fields.length; i++) {
+				if (o1.nullKeys[i] || o2.nullKeys[i]) {
+					if (o1.nullKeys[i] != o2.nullKeys[i]) {
+						return o1.nullKeys[i] ? 1 : -1;
+					}
+					continue;
+				}
+				int comparison;
+				if (fields[i].isPrimitive()) {
+					comparison = o1.primitiveKeys[i] < o2.primitiveKeys[i] ? -1 : (o1.primitiveKeys[i] == o2.primitiveKeys[i] ? 0 : 1);
 				} else {
-					return 0;
+					comparison = fields[i].compareObjectKeys(o1.objectKeys[i], o2.objectKeys[i]);
+				}
+				if (comparison != 0) {
+					return descending ? -comparison : comparison;
 				}
-			} catch (IllegalArgumentException e) {
-				return 0;
-			} catch (IllegalAccessException e) {
-				return 0;
 			}
-		}	
+			return o1.index < o2.index ? -1 : (o1.index == o2.index ? 0 : 1);
+		}
 	}
 }
@@ -0,0 +1,114 @@
+package org.nate.cassandra;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the sort key of one field of a result class, resolved once per class and field.  Integral
+ * numbers, dates and floating point numbers are read as longs that sort in the order of their 
+ * values, so sorting on them compares primitives.  Strings sort ignoring case, other numbers by 
+ * value, other Comparables naturally and anything else not at all.
+ */
+class SortField {
+
+	private static final ConcurrentMap<Class<?>, ConcurrentMap<String, SortField>> registry = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, SortField>>();
+
+	private enum Kind { INTEGRAL, FLOATING, STRING, NUMBER, COMPARABLE, NONE }
+
+	private final Field field;
+	private final Kind kind;
+
+	static SortField forField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+		ConcurrentMap<String, SortField> fields = registry.get(clazz);
+		if (fields == null) {
+			ConcurrentMap<String, SortField> created = new ConcurrentHashMap<String, SortField>();
+			fields = registry.putIfAbsent(clazz, created);
+			if (fields == null) {
+				fields = created;
+			}
+		}
+		SortField sortField = fields.get(fieldName);
+		if (sortField == null) {
+			SortField resolved = new SortField(findField(clazz, fieldName));
+			sortField = fields.putIfAbsent(fieldName, resolved);
+			if (sortField == null) {
+				sortField = resolved;
+			}
+		}
+		return sortField;
+	}
+
+	private SortField(Field field) {
+		field.setAccessible(true);
+		this.field = field;
+		this.kind = kindOf(field.getType());
+	}
+
+	/**
+	 * @return true when the keys of this field are read with {@link #primitiveKey(Object)}
+	 */
+	boolean isPrimitive() {
+		return kind == Kind.INTEGRAL || kind == Kind.FLOATING;
+	}
+
+	Object get(Object result) throws IllegalAccessException {
+		return field.get(result);
+	}
+
+	long primitiveKey(Object value) {
+		if (kind == Kind.FLOATING) {
+			// flipping the magnitude bits of negative doubles makes their bits sort as signed longs
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+		}
+		return value instanceof Date ? ((Date) value).getTime() : ((Number) value).longValue();
+	}
+
+	Object objectKey(Object value) {
+		return kind == Kind.NUMBER ? new BigDecimal(value.toString()) : value;
+	}
+
+	@SuppressWarnings("unchecked")
+	int compareObjectKeys(Object key1, Object key2) {
+		switch (kind) {
+			case STRING:
+				return String.CASE_INSENSITIVE_ORDER.compare((String) key1, (String) key2);
+			case NUMBER:
+			case COMPARABLE:
+				return ((Comparable<Object>) key1).compareTo(key2);
+			default:
+				return 0;
+		}
+	}
+
+	private static Field findField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+		for (Class<?> declaring = clazz; declaring != null; declaring = declaring.getSuperclass()) {
+			try {
+				return declaring.getDeclaredField(fieldName);
+			} catch (NoSuchFieldException e) {
+				// try the superclass
+			}
+		}
+		throw new NoSuchFieldException(fieldName);
+	}
+
+	private static Kind kindOf(Class<?> type) {
+		if (type == Long.class || type == long.class || type == Integer.class || type == int.class
+				|| type == Short.class || type == short.class || type == Byte.class || type == byte.class
+				|| Date.class.isAssignableFrom(type)) {
+			return Kind.INTEGRAL;
+		} else if (type == Double.class || type == double.class || type == Float.class || type == float.class) {
+			return Kind.FLOATING;
+		} else if (type == String.class) {
+			return Kind.STRING;
+		} else if (Number.class.isAssignableFrom(type)) {
+			return Kind.NUMBER;
+		} else if (Comparable.class.isAssignableFrom(type) || (type.isPrimitive() && type != void.class)) {
+			return Kind.COMPARABLE;
+		}
+		return Kind.NONE;
+	}
+}
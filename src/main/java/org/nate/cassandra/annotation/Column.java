@@ -5,9 +5,17 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+import org.nate.cassandra.serializer.Serializer;
+
 @Target(ElementType.FIELD)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Column {
 
 	String name() default "";
+	
+	/**
+	 * The serializer for the value, by default the one registered in Serializers for the field type.
+	 */
+	@SuppressWarnings("rawtypes")
+	Class<? extends Serializer> serializer() default Serializer.class;
 }
@@ -11,5 +11,17 @@ public @interface ColumnFamily {
 
 	String name() default "";
 	
+	/**
+	 * The name of the ConsistencyLevel reads of the column family are sent with, by default the 
+	 * one of the CassandraOperations instance.
+	 */
+	String readConsistency() default "";
+	
+	/**
+	 * The name of the ConsistencyLevel writes to the column family are sent with, by default the 
+	 * one of the CassandraOperations instance.
+	 */
+	String writeConsistency() default "";
+	
 	
 }
@@ -0,0 +1,19 @@
+package org.nate.cassandra.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a Column whose values are indexed by the client, so queries comparing it with a value read
+ * the keys of the matching rows from the index instead of scanning the whole column family.  The 
+ * index lives in a Standard column family compared with BytesType, which must be defined in the 
+ * keyspace.  Only String, Boolean, UUID, Date and numeric primitive or boxed columns can be indexed.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+
+	String columnFamily() default "Indexes";
+}
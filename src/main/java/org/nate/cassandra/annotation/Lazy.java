@@ -0,0 +1,16 @@
+package org.nate.cassandra.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a Column that is not read unless it is named in a projection, for large values that most 
+ * reads do not need.  An entity needs at least one Column that is not Lazy.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Lazy {
+
+}
@@ -0,0 +1,44 @@
+package org.nate.cassandra.connector;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.cassandra.thrift.Cassandra.Client;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+/**
+ * One thrift call made over an {@link AsyncConnection}.  send writes the request with the 
+ * client's send_ method and receive reads the response with the matching recv_ method, each
+ * against a client wrapped around an in-memory buffer rather than the socket.  receive runs on
+ * the selector thread.
+ */
+public abstract class AsyncCall<T> {
+
+	public abstract void send(Client client) throws TException;
+	public abstract T receive(Client client) throws Exception;
+
+	/**
+	 * @return the request with the four byte length prefix of the framed transport
+	 */
+	byte[] frame(TProtocolFactory protocolFactory) throws TException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		send(new Client(protocolFactory.getProtocol(new TIOStreamTransport(out))));
+		byte[] frame = out.toByteArray();
+		int length = frame.length - 4;
+		frame[0] = (byte) (length >>> 24);
+		frame[1] = (byte) (length >>> 16);
+		frame[2] = (byte) (length >>> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	T read(byte[] response, TProtocolFactory protocolFactory) throws Exception {
+		return receive(new Client(protocolFactory.getProtocol(new TMemoryInputTransport(response))));
+	}
+}
@@ -0,0 +1,282 @@
+package org.nate.cassandra.connector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TTransportException;
+import org.nate.cassandra.OperationFuture;
+import org.slf4j.Logger;
+
+/**
+ * A non-blocking connection to a server speaking the framed transport.  Calls are pipelined: 
+ * each is written as soon as the socket takes it and responses are matched to calls in the order
+ * they were sent, so one connection carries any number of calls in flight without a thread 
+ * waiting on any of them.  Since a late response cannot be skipped, a call that times out or 
+ * any transport error fails the connection along with every call still on it.
+ */
+public class AsyncConnection {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(AsyncConnection.class);
+	private final String host;
+	private final Integer port;
+	private final Integer timeout;
+	private final ConnectionFactory options;
+	private final TProtocolFactory protocolFactory;
+	private final SelectorPool.Loop loop;
+	private final Queue<Pending<?>> awaiting = new LinkedList<Pending<?>>();
+	private final Queue<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+	private final ByteBuffer header = ByteBuffer.allocate(4);
+	private ByteBuffer body;
+	private SocketChannel channel;
+	private volatile SelectionKey key;
+	private boolean closed = false;
+
+	public AsyncConnection(String host, Integer port, Integer timeout, SelectorPool selectors) {
+		this(new ConnectionFactory(host, port, timeout), selectors);
+	}
+
+	/**
+	 * A connection using the protocol and socket options of the given factory.  The transport is
+	 * always framed, whatever the factory says.
+	 */
+	public AsyncConnection(ConnectionFactory options, SelectorPool selectors) {
+		this.host = options.getHost();
+		this.port = options.getPort();
+		this.timeout = options.getTimeout();
+		this.options = options;
+		this.protocolFactory = options.isCompactProtocol() ? new TCompactProtocol.Factory() : new TBinaryProtocol.Factory();
+		this.loop = selectors.next();
+	}
+
+	public void openConnection() throws TTransportException {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(options.isTcpNoDelay());
+			channel.socket().setKeepAlive(options.isKeepAlive());
+			if (options.getSendBufferSize() != null) {
+				channel.socket().setSendBufferSize(options.getSendBufferSize());
+			}
+			if (options.getReceiveBufferSize() != null) {
+				channel.socket().setReceiveBufferSize(options.getReceiveBufferSize());
+			}
+			channel.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			fail(e);
+			throw new TTransportException(TTransportException.NOT_OPEN, "Unable to open connection to " + host + ":" + port, e);
+		}
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = channel.register(loop.getSelector(), channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, AsyncConnection.this);
+					updateInterest();
+				} catch (Exception e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	public synchronized boolean isOpen() {
+		return channel != null && !closed;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Queues the call and completes the future with its result, or with a TTransportException
+	 * when the connection fails before the response arrives.
+	 */
+	public <T> void call(AsyncCall<T> call, OperationFuture<T> future) {
+		byte[] frame;
+		try {
+			frame = call.frame(protocolFactory);
+		} catch (Exception e) {
+			future.setException(e);
+			return;
+		}
+		
+		synchronized (this) {
+			if (closed || channel == null) {
+				future.setException(new TTransportException(TTransportException.NOT_OPEN, "Connection to " + host + " is closed"));
+				return;
+			}
+			awaiting.add(new Pending<T>(call, future, protocolFactory, System.currentTimeMillis() + timeout));
+			writes.add(ByteBuffer.wrap(frame));
+		}
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					updateInterest();
+				} catch (RuntimeException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	public void closeConnection() {
+		fail(new TTransportException(TTransportException.NOT_OPEN, "Connection to " + host + " closed"));
+	}
+
+	/**
+	 * Called on the selector thread when the channel is ready.
+	 */
+	void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable() && channel.finishConnect()) {
+				updateInterest();
+			}
+			if (key.isValid() && key.isWritable()) {
+				write();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	void checkTimeout(long now) {
+		Pending<?> oldest;
+		synchronized (this) {
+			oldest = awaiting.peek();
+		}
+		if (oldest != null && now > oldest.deadline) {
+			fail(new TTransportException(TTransportException.TIMED_OUT, "No response from " + host + " within " + timeout + "ms"));
+		}
+	}
+
+	/**
+	 * Closes the connection and fails every call on it.  Safe to call from any thread, and more
+	 * than once.
+	 */
+	void fail(Exception cause) {
+		Queue<Pending<?>> failed;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			failed = new LinkedList<Pending<?>>(awaiting);
+			awaiting.clear();
+			writes.clear();
+		}
+		logger.debug("Closing connection to " + host + ": " + cause);
+		if (key != null) {
+			key.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.debug("Unable to close channel", e);
+			}
+		}
+		
+		TTransportException failure = cause instanceof TTransportException ? (TTransportException) cause : new TTransportException(cause);
+		for (Pending<?> pending : failed) {
+			pending.future.setException(failure);
+		}
+	}
+
+	private void updateInterest() {
+		if (key == null || !key.isValid() || !channel.isConnected()) {
+			return;
+		}
+		boolean pendingWrites;
+		synchronized (this) {
+			pendingWrites = !writes.isEmpty();
+		}
+		try {
+			key.interestOps(pendingWrites ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		} catch (CancelledKeyException e) {
+			// closed from another thread since we looked, fail has already dealt with the calls
+		}
+	}
+
+	private void write() throws IOException {
+		while (true) {
+			ByteBuffer buffer;
+			synchronized (this) {
+				buffer = writes.peek();
+			}
+			if (buffer == null) {
+				break;
+			}
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return;
+			}
+			synchronized (this) {
+				writes.poll();
+			}
+		}
+		updateInterest();
+	}
+
+	private void read() throws Exception {
+		while (true) {
+			ByteBuffer target = body == null ? header : body;
+			int read = channel.read(target);
+			if (read < 0) {
+				throw new EOFException("Connection to " + host + " closed by the server");
+			}
+			if (target.hasRemaining()) {
+				return;
+			}
+			
+			if (body == null) {
+				header.flip();
+				body = ByteBuffer.allocate(header.getInt());
+				header.clear();
+			} else {
+				byte[] response = body.array();
+				body = null;
+				Pending<?> pending;
+				synchronized (this) {
+					pending = awaiting.poll();
+				}
+				if (pending == null) {
+					throw new IOException("Response from " + host + " without a call waiting for it");
+				}
+				pending.complete(response);
+			}
+		}
+	}
+
+	private static class Pending<T> {
+		private final AsyncCall<T> call;
+		private final OperationFuture<T> future;
+		private final TProtocolFactory protocolFactory;
+		private final long deadline;
+
+		Pending(AsyncCall<T> call, OperationFuture<T> future, TProtocolFactory protocolFactory, long deadline) {
+			this.call = call;
+			this.future = future;
+			this.protocolFactory = protocolFactory;
+			this.deadline = deadline;
+		}
+
+		void complete(byte[] response) {
+			try {
+				future.set(call.read(response, protocolFactory));
+			} catch (Exception e) {
+				future.setException(e);
+			}
+		}
+	}
+}
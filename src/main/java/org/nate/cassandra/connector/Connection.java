@@ -1,11 +1,20 @@
 package org.nate.cassandra.connector;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
 import org.apache.cassandra.thrift.Cassandra.Client;
 import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
 import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TIOStreamTransport;
 import org.apache.thrift.transport.TTransport;
-import org.apache.thrift.transport.TTransportException;
 import org.nate.cassandra.CassandraOperationException;
 
 public class Connection {
@@ -13,46 +22,132 @@ public class Connection {
 	private String host;
 	private Integer port;
 	private Integer timeout;
+	private final ConnectionFactory options;
+	private Socket socket;
 	private TTransport transport;
 	private Client client;
 	private boolean open = false;
+	private long openedAt = 0L;
+	private long lastUsedAt = 0L;
+	private long leasedAt = 0L;
 	
 	
 	public Connection(String host, Integer port, Integer timeout) {
-		this.host = host;
-		this.port = port;
-		this.timeout = timeout;
+		this(new ConnectionFactory(host, port, timeout));
+	}
+
+	/**
+	 * A connection using the transport, protocol and socket options of the given factory.
+	 */
+	public Connection(ConnectionFactory options) {
+		this.host = options.getHost();
+		this.port = options.getPort();
+		this.timeout = options.getTimeout();
+		this.options = options;
 	}
 
 	public void closeConnection() throws CassandraOperationException {
 		try {
 			if (client != null && transport.isOpen()) {
-				transport.flush();
-				transport.close();
+				try {
+					transport.flush();
+				} finally {
+					transport.close();
+					socket.close();
+				}
 			}
-			client = null;
-			open = false;
 		} catch (Exception e) {
 			throw new CassandraOperationException("Unable to close connection", e);
+		} finally {
+			client = null;
+			open = false;
+			openedAt = 0L;
 		}
 	}
 	
 	public void openConnection() throws CassandraOperationException {
-		transport = new TSocket(host, port, timeout);
-		TProtocol protocol = new TBinaryProtocol(transport);
-		client = new Client(protocol);
+		socket = new Socket();
 		try {
-			transport.open();
-			open = true;
-		} catch (TTransportException e) {
+			socket.setTcpNoDelay(options.isTcpNoDelay());
+			socket.setKeepAlive(options.isKeepAlive());
+			if (options.getSendBufferSize() != null) {
+				socket.setSendBufferSize(options.getSendBufferSize());
+			}
+			if (options.getReceiveBufferSize() != null) {
+				socket.setReceiveBufferSize(options.getReceiveBufferSize());
+			}
+			socket.setSoTimeout(timeout);
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			
+			InputStream in = socket.getInputStream();
+			OutputStream out = socket.getOutputStream();
+			Integer bufferSize = options.getStreamBufferSize();
+			if (bufferSize != null && bufferSize > 0) {
+				in = new BufferedInputStream(in, bufferSize);
+				out = new BufferedOutputStream(out, bufferSize);
+			}
+			transport = new TIOStreamTransport(in, out);
+			if (options.isFramedTransport()) {
+				transport = new TFramedTransport(transport);
+			}
+			TProtocol protocol = options.isCompactProtocol() ? new TCompactProtocol(transport) : new TBinaryProtocol(transport);
+			client = new Client(protocol);
+			markOpened();
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException closeFailure) {
+				// nothing more to do with a socket that never opened
+			}
 			throw new CassandraOperationException("unable to open connetion", e);
 		}
 	}
 
+	/**
+	 * Records that the connection is open as of now.
+	 */
+	protected void markOpened() {
+		open = true;
+		openedAt = System.currentTimeMillis();
+		lastUsedAt = openedAt;
+	}
+
 	public boolean isOpen() {
 		return open;
 	}
 
+	/**
+	 * Cheap, local check that the underlying socket is still usable.  This does not
+	 * make a round trip to the server, it only catches sockets we or the peer have shut down.
+	 */
+	public boolean isAlive() {
+		if (!open || transport == null || !transport.isOpen()) {
+			return false;
+		}
+		return socket != null && socket.isConnected() && !socket.isClosed() 
+			&& !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	public void markUsed() {
+		lastUsedAt = System.currentTimeMillis();
+	}
+
+	public long getOpenedAt() {
+		return openedAt;
+	}
+
+	public long getLastUsedAt() {
+		return lastUsedAt;
+	}
+
+	void markLeased() {
+		leasedAt = System.nanoTime();
+	}
+
+	long getLeasedNanos() {
+		return System.nanoTime() - leasedAt;
+	}
+
 	public String getHost() {
 		return host;
 	}
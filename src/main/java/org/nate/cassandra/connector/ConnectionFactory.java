@@ -5,6 +5,13 @@ public class ConnectionFactory {
 	private String host;
 	private Integer port;
 	private Integer timeout = 1000;
+	private boolean framedTransport = false;
+	private boolean compactProtocol = false;
+	private boolean tcpNoDelay = true;
+	private boolean keepAlive = false;
+	private Integer sendBufferSize;
+	private Integer receiveBufferSize;
+	private Integer streamBufferSize = 8192;
 	
 	public ConnectionFactory() {
 		// default for spring configuration
@@ -17,7 +24,7 @@ public class ConnectionFactory {
 	}
 
 	public Connection createConnection() {
-		return new Connection(host, port, timeout);
+		return new Connection(this);
 	}
 
 	public String getHost() {
@@ -43,6 +50,80 @@ public class ConnectionFactory {
 	public void setTimeout(Integer timeout) {
 		this.timeout = timeout;
 	}
+
+	public boolean isFramedTransport() {
+		return framedTransport;
+	}
+
+	/**
+	 * Frames every message with its length.  Must match the server, Cassandra 0.6 only uses it
+	 * with ThriftFramedTransport set in storage-conf.xml.
+	 */
+	public void setFramedTransport(boolean framedTransport) {
+		this.framedTransport = framedTransport;
+	}
+
+	public boolean isCompactProtocol() {
+		return compactProtocol;
+	}
+
+	/**
+	 * Uses TCompactProtocol instead of TBinaryProtocol.  Only for servers set up to speak it, 
+	 * Cassandra 0.6 itself only speaks the binary protocol.
+	 */
+	public void setCompactProtocol(boolean compactProtocol) {
+		this.compactProtocol = compactProtocol;
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	public Integer getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * SO_SNDBUF in bytes, left to the operating system when null.
+	 */
+	public void setSendBufferSize(Integer sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	public Integer getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * SO_RCVBUF in bytes, left to the operating system when null.
+	 */
+	public void setReceiveBufferSize(Integer receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public Integer getStreamBufferSize() {
+		return streamBufferSize;
+	}
+
+	/**
+	 * The size of the buffers between the protocol and the socket streams, so a request is 
+	 * written with as few socket writes as possible.  Unbuffered when null or 0.
+	 */
+	public void setStreamBufferSize(Integer streamBufferSize) {
+		this.streamBufferSize = streamBufferSize;
+	}
 	
 	
 }
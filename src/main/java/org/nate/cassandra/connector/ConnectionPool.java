@@ -1,17 +1,31 @@
 package org.nate.cassandra.connector;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cassandra.thrift.TokenRange;
 
 import org.nate.cassandra.CassandraOperationException;
 import org.nate.functions.functors.ActionFn;
-import org.nate.functions.functors.FilterFn;
 import org.nate.functions.functors.ListFunctions;
 import org.nate.functions.functors.exceptions.FunctorException;
-import org.nate.functions.options.Option;
 import org.slf4j.Logger;
 
 import com.google.common.collect.Lists;
@@ -20,77 +34,516 @@ public class ConnectionPool {
 
 	private Logger logger = org.slf4j.LoggerFactory.getLogger(ConnectionPool.class);
 	private List<ConnectionFactory> connectionFactories = new ArrayList<ConnectionFactory>();
-	private Map<String, Map<Connection, Boolean>> pool; // = new HashMap<String, Map<Connection, Boolean>>();
+	private volatile Map<String, BlockingDeque<Connection>> pool = Collections.emptyMap();
+	private volatile List<String> hosts = Collections.emptyList();
+	private volatile Semaphore available = new Semaphore(0, true);
+	private volatile Set<Connection> members = Collections.emptySet();
+	private volatile Map<String, ConnectionFactory> factoriesByHost = Collections.emptyMap();
+	private final ConcurrentHashMap<String, HostHealth> health = new ConcurrentHashMap<String, HostHealth>();
+	private ScheduledExecutorService prober;
+	private ScheduledExecutorService evictor;
+	private final ReentrantLock backgroundLock = new ReentrantLock();
+	private final ReentrantLock returnLock = new ReentrantLock();
+	private final Condition connectionReturned = returnLock.newCondition();
+	private long returns = 0L;
+	private final Set<Connection> leased = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	private final AtomicBoolean refreshingRing = new AtomicBoolean(false);
+	private HostSelectionPolicy hostSelectionPolicy = new RandomPolicy();
 	private Integer connectionsPerHost;
 	private Long waitForConnectionTimeout;
-	
+	private boolean persistentConnections = false;
+	private Long maxIdleTime = 60000L;
+	private Long maxConnectionLifetime = 1800000L;
+	private Long evictionInterval = 30000L;
+	private String keyspace;
+	private final HostAddresses addresses = new HostAddresses();
+	private Integer failureThreshold = 3;
+	private Long probeInterval = 5000L;
+	private Integer maxFailoverAttempts = 2;
+
 	public ConnectionPool() {
 		this.connectionsPerHost = 1;
 		this.waitForConnectionTimeout = 1000L;
 	}
-	
+
 	public ConnectionPool(Integer connectionsPerHost, Long waitTimeout, List<ConnectionFactory> factories) {
 		logger.debug("Setting up new connection pool (" + connectionsPerHost + " connections per host)");
 		this.connectionsPerHost = connectionsPerHost;
 		this.waitForConnectionTimeout = waitTimeout;
 		this.connectionFactories = factories;
-		this.pool = initializePool();
+		installPool(initializePool());
 		logger.debug("Pool initialized successfully");
 	}
-	
+
 	public Connection getConnection() throws CassandraOperationException {
+		return getConnection(null);
+	}
+
+	/**
+	 * Checks out a connection, letting the host selection policy route on the given row key.
+	 */
+	public Connection getConnection(String key) throws CassandraOperationException {
+		return getConnection(key, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Checks out a connection, avoiding the excluded hosts (e.g. ones that already failed
+	 * this operation) unless nothing else is available.  A host that refuses the connection
+	 * is recorded as failed and the next host is tried, since nothing was sent yet.
+	 */
+	public Connection getConnection(String key, Set<String> excludedHosts) throws CassandraOperationException {
+		return getConnection(key, null, excludedHosts);
+	}
+
+	/**
+	 * Checks out a connection like {@link #getConnection(String, Set)}, trying the preferred hosts 
+	 * (names or addresses, e.g. the endpoints of a token range) before the others.
+	 */
+	public Connection getConnection(String key, List<String> preferredHosts, Set<String> excludedHosts) throws CassandraOperationException {
 		logger.debug("Getting a new connection");
 		if (connectionFactories.size() == 0) {
 			throw new CassandraOperationException("No connection factories defined");
 		}
-		
-		Connection connection = null;
-		long waitTime = 0L;
-		while (connection == null && waitTime < waitForConnectionTimeout) {
-			long start = System.currentTimeMillis();
-			List<String> hosts = Lists.newArrayList(pool.keySet());
-			int randomHostIndex = hosts.size() > 0 ? new Random().nextInt(hosts.size()) : 0;
-			final Map<Connection, Boolean> targetHostPool = pool.get(hosts.get(randomHostIndex));
-			Option<Connection> possible = ListFunctions.find(Lists.newArrayList(targetHostPool.keySet()), new FilterFn<Connection>(){
-				public boolean apply(Connection it) throws FunctorException {
-					return targetHostPool.get(it);
-				}
-			});
-			if (possible.isSome()) {
-				connection = possible.get();
-				connection.openConnection();
-				targetHostPool.put(connection, false);
+		if (key != null) {
+			refreshRingIfNeeded();
+		}
+
+		Set<String> failedHosts = new HashSet<String>(excludedHosts);
+		CassandraOperationException lastFailure = null;
+		for (int attempt = 0; attempt < Math.max(1, hosts.size()); attempt++) {
+			Connection connection = checkout(key, preferredHosts, failedHosts);
+			try {
+				prepareForCheckout(connection);
+				logger.debug("Connection established: " + connection.getHost());
+				return connection;
+			} catch (CassandraOperationException e) {
+				logger.debug("Unable to connect to " + connection.getHost(), e);
+				reportFailure(connection.getHost());
+				returnToPool(connection);
+				failedHosts.add(connection.getHost());
+				lastFailure = e;
 			}
-			long end = System.currentTimeMillis();
-			waitTime += (end - start);
 		}
-		
+		throw lastFailure;
+	}
+
+	private Connection checkout(String key, List<String> preferredHosts, Set<String> excludedHosts) throws CassandraOperationException {
+		// the semaphore holds one permit per idle connection and queues waiters in FIFO order,
+		// so holding a permit guarantees an idle connection is sitting in one of the host deques
+		Semaphore permits = available;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitForConnectionTimeout);
+		try {
+			if (!permits.tryAcquire(waitForConnectionTimeout, TimeUnit.MILLISECONDS)) {
+				throw new CassandraOperationException("Timed out waiting for connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CassandraOperationException("Interrupted while waiting for connection", e);
+		}
+
+		Connection connection = takeIdleConnection(key, preferredHosts, excludedHosts, deadline);
 		if (connection == null) {
+			permits.release();
+			if (permits != available) {
+				throw new CassandraOperationException("Connection pool was reconfigured while waiting for connection");
+			}
 			throw new CassandraOperationException("Timed out waiting for connection");
 		}
-		logger.debug("Connection established: " + connection.getHost());
+		leased.add(connection);
+		connection.markLeased();
+		hostSelectionPolicy.connectionAcquired(connection.getHost());
 		return connection;
 	}
-	
+
+	/**
+	 * Takes an idle connection from the first usable host.  The idle connection our permit stands
+	 * for may be on a host that is down, in which case we wait for one on a healthy host to be
+	 * put back, until the deadline.
+	 */
+	private Connection takeIdleConnection(String key, List<String> preferredHosts, Set<String> excludedHosts, long deadline) {
+		Map<String, BlockingDeque<Connection>> currentPool = pool;
+		List<String> currentHosts = hosts;
+		if (currentHosts.isEmpty()) {
+			return null;
+		}
+		List<String> orderedHosts = hostSelectionPolicy.orderHosts(currentHosts, key);
+		if (preferredHosts != null && !preferredHosts.isEmpty()) {
+			orderedHosts = addresses.preferring(orderedHosts, preferredHosts);
+		}
+		// another permit holder may beat us to the host we looked at, but a connection is
+		// guaranteed to be somewhere, so sweep again whenever one is put back until we find it
+		while (true) {
+			long seenReturns = returnsSoFar();
+			for (String host : usableHosts(orderedHosts, excludedHosts)) {
+				BlockingDeque<Connection> hostPool = currentPool.get(host);
+				if (hostPool == null) {
+					continue;
+				}
+				Connection connection = hostPool.pollFirst();
+				if (connection != null) {
+					return connection;
+				}
+			}
+			long remaining = deadline - System.nanoTime();
+			if (currentPool != pool || remaining <= 0) {
+				return null;
+			}
+			awaitReturnAfter(seenReturns, remaining);
+		}
+	}
+
+	private long returnsSoFar() {
+		returnLock.lock();
+		try {
+			return returns;
+		} finally {
+			returnLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for a connection to be put back into a host deque after the given count of returns.
+	 * The wait is bounded since a reconfigured pool never signals the old one, and a host that
+	 * comes back up does not signal at all.
+	 */
+	private void awaitReturnAfter(long seenReturns, long timeoutNanos) {
+		returnLock.lock();
+		try {
+			long remaining = Math.min(timeoutNanos, TimeUnit.MILLISECONDS.toNanos(100L));
+			while (returns == seenReturns && remaining > 0) {
+				remaining = connectionReturned.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			returnLock.unlock();
+		}
+	}
+
+	private void signalReturned() {
+		returnLock.lock();
+		try {
+			returns++;
+			connectionReturned.signalAll();
+		} finally {
+			returnLock.unlock();
+		}
+	}
+
+	/**
+	 * Healthy hosts keep the policy's order and excluded hosts go after them.  Hosts that are 
+	 * marked down are left out, a socket to one may still look open and would only time out, 
+	 * unless every host is down.
+	 */
+	private List<String> usableHosts(List<String> orderedHosts, Set<String> excludedHosts) {
+		List<String> healthy = new ArrayList<String>(orderedHosts.size());
+		List<String> excluded = new ArrayList<String>();
+		for (String host : orderedHosts) {
+			if (isHostDown(host)) {
+				continue;
+			}
+			if (excludedHosts.contains(host)) {
+				excluded.add(host);
+			} else {
+				healthy.add(host);
+			}
+		}
+		if (healthy.isEmpty() && excluded.isEmpty()) {
+			return orderedHosts;
+		}
+		healthy.addAll(excluded);
+		return healthy;
+	}
+
+	public boolean isHostDown(String host) {
+		HostHealth hostHealth = health.get(host);
+		return hostHealth != null && hostHealth.isDown();
+	}
+
+	public int getHostCount() {
+		return hosts.size();
+	}
+
+	public void reportSuccess(String host) {
+		HostHealth hostHealth = health.get(host);
+		if (hostHealth != null) {
+			hostHealth.recordSuccess();
+		}
+	}
+
+	public void reportFailure(String host) {
+		HostHealth hostHealth = health.get(host);
+		if (hostHealth != null && hostHealth.recordFailure(failureThreshold)) {
+			logger.warn("Marking host " + host + " down after " + hostHealth.getConsecutiveFailures() + " consecutive failures");
+			scheduleProbes();
+		}
+	}
+
+	private void scheduleProbes() {
+		backgroundLock.lock();
+		try {
+			if (prober == null) {
+				prober = schedule("cassandra-host-prober", probeInterval, new Runnable() {
+					public void run() {
+						probeDownHosts();
+					}
+				});
+			}
+		} finally {
+			backgroundLock.unlock();
+		}
+	}
+
+	/**
+	 * Persistent connections are swept for idle and expired ones every evictionInterval 
+	 * milliseconds, so a quiet client still gives its sockets back to the server.
+	 */
+	private void scheduleEviction() {
+		backgroundLock.lock();
+		try {
+			if (evictor == null && evictionInterval != null && evictionInterval > 0) {
+				evictor = schedule("cassandra-idle-evictor", evictionInterval, new Runnable() {
+					public void run() {
+						evictIdleConnections();
+					}
+				});
+			}
+		} finally {
+			backgroundLock.unlock();
+		}
+	}
+
+	private ScheduledExecutorService schedule(final String threadName, long interval, Runnable task) {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+		return scheduler;
+	}
+
+	protected void probeDownHosts() {
+		for (HostHealth hostHealth : health.values()) {
+			if (!hostHealth.isDown()) {
+				continue;
+			}
+			ConnectionFactory factory = factoriesByHost.get(hostHealth.getHost());
+			if (factory == null) {
+				continue;
+			}
+			Connection probe = factory.createConnection();
+			try {
+				probe.openConnection();
+				hostHealth.markUp();
+				logger.info("Host " + hostHealth.getHost() + " is reachable again, marking it up");
+			} catch (CassandraOperationException e) {
+				logger.debug("Host " + hostHealth.getHost() + " is still down");
+			} finally {
+				closeQuietly(probe);
+			}
+		}
+	}
+
+	/**
+	 * Stops the background reconnection probes and idle connection eviction.
+	 */
+	public void shutdown() {
+		backgroundLock.lock();
+		try {
+			if (prober != null) {
+				prober.shutdownNow();
+				prober = null;
+			}
+			if (evictor != null) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+		} finally {
+			backgroundLock.unlock();
+		}
+	}
+
+	private void prepareForCheckout(Connection connection) throws CassandraOperationException {
+		if (persistentConnections && connection.isOpen()) {
+			if (isExpired(connection, System.currentTimeMillis()) || !connection.isAlive()) {
+				logger.debug("Recycling stale connection to " + connection.getHost());
+				closeQuietly(connection);
+			} else {
+				return;
+			}
+		}
+		connection.openConnection();
+	}
+
+	private boolean isExpired(Connection connection, long now) {
+		boolean idleTooLong = maxIdleTime != null && maxIdleTime > 0 && now - connection.getLastUsedAt() > maxIdleTime;
+		boolean tooOld = maxConnectionLifetime != null && maxConnectionLifetime > 0 && now - connection.getOpenedAt() > maxConnectionLifetime;
+		return idleTooLong || tooOld;
+	}
+
+	private void closeQuietly(Connection connection) {
+		try {
+			connection.closeConnection();
+		} catch (CassandraOperationException e) {
+			logger.debug("Error closing connection to " + connection.getHost() + ", discarding it anyway", e);
+		}
+	}
+
+	/**
+	 * Closes idle persistent connections that have exceeded the idle time or lifetime limits.
+	 * Runs every evictionInterval milliseconds in persistent mode, connections are also checked
+	 * on checkout.  Every host's idle connections are looked at once, whatever the host 
+	 * selection policy would pick.
+	 */
+	public void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		Map<String, BlockingDeque<Connection>> currentPool = pool;
+		Semaphore permits = available;
+		for (BlockingDeque<Connection> hostPool : currentPool.values()) {
+			int idle = hostPool.size();
+			for (int i = 0; i < idle && permits.tryAcquire(); i++) {
+				Connection connection = hostPool.pollFirst();
+				if (connection == null) {
+					// somebody else took it, the permit belongs to a connection on another host
+					permits.release();
+					break;
+				}
+				if (connection.isOpen() && isExpired(connection, now)) {
+					closeQuietly(connection);
+				}
+				// put it at the cold end so we do not look at it again in this sweep
+				hostPool.offerLast(connection);
+				signalReturned();
+				permits.release();
+			}
+		}
+	}
+
+	private void refreshRingIfNeeded() {
+		if (!(hostSelectionPolicy instanceof TokenAwarePolicy)) {
+			return;
+		}
+		TokenAwarePolicy tokenAware = (TokenAwarePolicy) hostSelectionPolicy;
+		// only one thread refreshes, everybody else keeps routing on the ring they already have
+		if (tokenAware.needsRingRefresh() && refreshingRing.compareAndSet(false, true)) {
+			try {
+				refreshRing(tokenAware);
+			} finally {
+				refreshingRing.set(false);
+			}
+		}
+	}
+
+	private void refreshRing(TokenAwarePolicy tokenAware) {
+		String ringKeyspace = tokenAware.getKeyspace() != null ? tokenAware.getKeyspace() : keyspace;
+		if (ringKeyspace == null) {
+			logger.debug("No keyspace configured, routing without a token ring");
+			tokenAware.ringRefreshFailed();
+			return;
+		}
+		Connection connection = null;
+		try {
+			connection = getConnection(null);
+			String partitioner = connection.getClient().describe_partitioner();
+			List<TokenRange> ranges = connection.getClient().describe_ring(ringKeyspace);
+			tokenAware.updateRing(partitioner, ranges);
+		} catch (Exception e) {
+			logger.debug("Unable to refresh token ring, routing without it for now", e);
+			tokenAware.ringRefreshFailed();
+		} finally {
+			releaseConnection(connection);
+		}
+	}
+
 	public void setFactories(List<ConnectionFactory> factories) {
 		// we need to re-init every time this is called
 		this.connectionFactories = factories;
-		this.pool = initializePool();
+		installPool(initializePool());
 	}
 
 	public void setConnectionsPerHost(Integer connectionsPerHost) {
 		this.connectionsPerHost = connectionsPerHost;
 	}
 
-	protected Map<String, Map<Connection, Boolean>> initializePool() {
-		final Map<String, Map<Connection, Boolean>> pool = new HashMap<String, Map<Connection, Boolean>>();
+	public void setPersistentConnections(boolean persistentConnections) {
+		this.persistentConnections = persistentConnections;
+		if (persistentConnections) {
+			scheduleEviction();
+		}
+	}
+
+	public boolean isPersistentConnections() {
+		return persistentConnections;
+	}
+
+	public void setMaxIdleTime(Long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	public void setMaxConnectionLifetime(Long maxConnectionLifetime) {
+		this.maxConnectionLifetime = maxConnectionLifetime;
+	}
+
+	/**
+	 * How often persistent connections are swept for idle and expired ones, 0 turns the sweep
+	 * off.  Takes effect when persistent connections are turned on.
+	 */
+	public void setEvictionInterval(Long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+
+	public String getKeyspace() {
+		return keyspace;
+	}
+
+	/**
+	 * The keyspace whose ring token aware routing uses, kept in step with 
+	 * CassandraOperations.setKeyspaceName when the pool is wired into the operations.
+	 */
+	public void setKeyspace(String keyspace) {
+		this.keyspace = keyspace;
+	}
+
+	public HostSelectionPolicy getHostSelectionPolicy() {
+		return hostSelectionPolicy;
+	}
+
+	public void setHostSelectionPolicy(HostSelectionPolicy hostSelectionPolicy) {
+		this.hostSelectionPolicy = hostSelectionPolicy;
+	}
+
+	public void setFailureThreshold(Integer failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public void setProbeInterval(Long probeInterval) {
+		this.probeInterval = probeInterval;
+	}
+
+	public Integer getMaxFailoverAttempts() {
+		return maxFailoverAttempts;
+	}
+
+	public void setMaxFailoverAttempts(Integer maxFailoverAttempts) {
+		this.maxFailoverAttempts = maxFailoverAttempts;
+	}
+
+	public void setWaitForConnectionTimeout(Long waitForConnectionTimeout) {
+		this.waitForConnectionTimeout = waitForConnectionTimeout;
+	}
+
+	protected Map<String, BlockingDeque<Connection>> initializePool() {
+		final Map<String, BlockingDeque<Connection>> pool = new LinkedHashMap<String, BlockingDeque<Connection>>();
 		ListFunctions.act(connectionFactories, new ActionFn<ConnectionFactory>() {
 			public void apply(ConnectionFactory it) throws FunctorException {
-				Map<Connection, Boolean> hostPool = new HashMap<Connection, Boolean>();
+				BlockingDeque<Connection> hostPool = new LinkedBlockingDeque<Connection>();
 				int i = 0;
 				while (i < connectionsPerHost) {
 					i++;
-					hostPool.put(it.createConnection(), true);
+					hostPool.offerLast(it.createConnection());
 				}
 				pool.put(it.getHost(), hostPool);
 			}
@@ -98,18 +551,51 @@ public class ConnectionPool {
 		return pool;
 	}
 
+	private void installPool(Map<String, BlockingDeque<Connection>> newPool) {
+		Set<Connection> newMembers = new HashSet<Connection>();
+		for (BlockingDeque<Connection> hostPool : newPool.values()) {
+			newMembers.addAll(hostPool);
+		}
+		Map<String, ConnectionFactory> newFactoriesByHost = new HashMap<String, ConnectionFactory>();
+		for (ConnectionFactory factory : connectionFactories) {
+			newFactoriesByHost.put(factory.getHost(), factory);
+			health.putIfAbsent(factory.getHost(), new HostHealth(factory.getHost()));
+		}
+		this.factoriesByHost = newFactoriesByHost;
+		this.members = Collections.unmodifiableSet(newMembers);
+		this.hosts = Collections.unmodifiableList(Lists.newArrayList(newPool.keySet()));
+		this.pool = newPool;
+		this.available = new Semaphore(newMembers.size(), true);
+	}
+
 	public void releaseConnection(Connection connection) {
 		if (connection == null) {
 			logger.debug("Attempting to release a null connection?  WTF!");
 			return;
 		}
 		logger.debug("Attempting to release connection back to the pool: " + connection.getHost());
-		if (connection.isOpen()) {
-			connection.closeConnection();
+		if (persistentConnections && connection.isAlive()) {
+			connection.markUsed();
+		} else if (connection.isOpen()) {
+			closeQuietly(connection);
+		}
+		returnToPool(connection);
+		logger.debug("Connection returned to pool successfully");
+	}
+
+	private void returnToPool(Connection connection) {
+		if (!leased.remove(connection)) {
+			logger.debug("Connection to " + connection.getHost() + " was already released, ignoring");
+			return;
+		}
+		hostSelectionPolicy.connectionReleased(connection.getHost(), connection.getLeasedNanos());
+		if (!members.contains(connection)) {
+			// the pool was re-initialized while this connection was out, let it go
+			closeQuietly(connection);
+			return;
 		}
-		
-		Map<Connection, Boolean> targetHostPool = pool.get(connection.getHost());
-		targetHostPool.put(connection, true);
-		logger.debug("Connection closed and returned to pool successfully");
+		pool.get(connection.getHost()).offerFirst(connection);
+		signalReturned();
+		available.release();
 	}
 }
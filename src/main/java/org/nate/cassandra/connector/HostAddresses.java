@@ -0,0 +1,48 @@
+package org.nate.cassandra.connector;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Matches configured host names against the addresses Cassandra reports for its nodes, 
+ * resolving each host name once.
+ */
+class HostAddresses {
+
+	private final ConcurrentMap<String, String> addressesByHost = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * @return the hosts named in preferred (by name or address) first, then the others, each in their original order
+	 */
+	List<String> preferring(List<String> hosts, Collection<String> preferred) {
+		List<String> preferredHosts = new ArrayList<String>(hosts.size());
+		List<String> otherHosts = new ArrayList<String>(hosts.size());
+		for (String host : hosts) {
+			if (preferred.contains(host) || preferred.contains(addressOf(host))) {
+				preferredHosts.add(host);
+			} else {
+				otherHosts.add(host);
+			}
+		}
+		preferredHosts.addAll(otherHosts);
+		return preferredHosts;
+	}
+
+	String addressOf(String host) {
+		String address = addressesByHost.get(host);
+		if (address == null) {
+			try {
+				address = InetAddress.getByName(host).getHostAddress();
+			} catch (UnknownHostException e) {
+				address = host;
+			}
+			addressesByHost.putIfAbsent(host, address);
+		}
+		return address;
+	}
+}
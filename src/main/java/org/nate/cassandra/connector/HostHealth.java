@@ -0,0 +1,62 @@
+package org.nate.cassandra.connector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Failure bookkeeping for a single host.  After failureThreshold consecutive failures the 
+ * circuit opens and the host is marked down until a reconnection probe succeeds.
+ */
+public class HostHealth {
+
+	private final String host;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile boolean down = false;
+	private volatile long downSince = 0L;
+	
+	public HostHealth(String host) {
+		this.host = host;
+	}
+
+	public void recordSuccess() {
+		consecutiveFailures.set(0);
+	}
+	
+	/**
+	 * @return true if this failure tripped the circuit and marked the host down
+	 */
+	public boolean recordFailure(int failureThreshold) {
+		int failures = consecutiveFailures.incrementAndGet();
+		if (failures >= failureThreshold && !down) {
+			synchronized (this) {
+				if (!down) {
+					downSince = System.currentTimeMillis();
+					down = true;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	public void markUp() {
+		consecutiveFailures.set(0);
+		down = false;
+		downSince = 0L;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public boolean isDown() {
+		return down;
+	}
+
+	public long getDownSince() {
+		return downSince;
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures.get();
+	}
+}
@@ -0,0 +1,22 @@
+package org.nate.cassandra.connector;
+
+import java.util.List;
+
+/**
+ * Decides which host the {@link ConnectionPool} should try first when handing out a connection.
+ * The pool walks the returned list in order and takes an idle connection from the first host
+ * that has one, so a policy expresses preference rather than a hard assignment.
+ */
+public interface HostSelectionPolicy {
+
+	/**
+	 * @param hosts the hosts configured in the pool
+	 * @param key the row key the operation is for, or null when the operation is not key specific
+	 * @return the hosts in the order they should be tried
+	 */
+	List<String> orderHosts(List<String> hosts, String key);
+	
+	void connectionAcquired(String host);
+	
+	void connectionReleased(String host, long elapsedNanos);
+}
@@ -0,0 +1,77 @@
+package org.nate.cassandra.connector;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Prefers the host with the lowest exponentially weighted moving average of response time.
+ * Hosts without a recent sample sort first so that slow hosts get re-measured once in a
+ * while instead of being starved forever after a single bad spike.
+ */
+public class LatencyAwarePolicy implements HostSelectionPolicy {
+
+	private final ConcurrentMap<String, Latency> latencies = new ConcurrentHashMap<String, Latency>();
+	private final RoundRobinPolicy tieBreaker = new RoundRobinPolicy();
+	private double alpha = 0.2;
+	private long sampleExpiry = 10000L;
+	
+	public List<String> orderHosts(List<String> hosts, String key) {
+		List<String> ordered = tieBreaker.orderHosts(hosts, key);
+		final long now = System.currentTimeMillis();
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String host1, String host2) {
+				return Double.compare(scoreFor(host1, now), scoreFor(host2, now));
+			}
+		});
+		return ordered;
+	}
+
+	public void connectionAcquired(String host) {
+	}
+
+	public void connectionReleased(String host, long elapsedNanos) {
+		Latency latency = latencies.get(host);
+		if (latency == null) {
+			Latency created = new Latency();
+			latency = latencies.putIfAbsent(host, created);
+			if (latency == null) {
+				latency = created;
+			}
+		}
+		latency.update(elapsedNanos, alpha);
+	}
+	
+	public double getAverageLatency(String host) {
+		Latency latency = latencies.get(host);
+		return latency == null ? 0.0 : latency.average;
+	}
+
+	private double scoreFor(String host, long now) {
+		Latency latency = latencies.get(host);
+		if (latency == null || now - latency.updatedAt > sampleExpiry) {
+			return 0.0;
+		}
+		return latency.average;
+	}
+	
+	public void setAlpha(double alpha) {
+		this.alpha = alpha;
+	}
+
+	public void setSampleExpiry(long sampleExpiry) {
+		this.sampleExpiry = sampleExpiry;
+	}
+
+	private static class Latency {
+		private volatile double average = -1.0;
+		private volatile long updatedAt;
+		
+		synchronized void update(long sample, double alpha) {
+			average = average < 0 ? sample : (alpha * sample) + ((1 - alpha) * average);
+			updatedAt = System.currentTimeMillis();
+		}
+	}
+}
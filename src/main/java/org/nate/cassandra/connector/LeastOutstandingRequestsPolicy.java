@@ -0,0 +1,56 @@
+package org.nate.cassandra.connector;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prefers the host with the fewest connections currently checked out.  Ties are broken 
+ * round robin so an idle cluster still spreads its load.
+ */
+public class LeastOutstandingRequestsPolicy implements HostSelectionPolicy {
+
+	private final ConcurrentMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<String, AtomicInteger>();
+	private final RoundRobinPolicy tieBreaker = new RoundRobinPolicy();
+	
+	public List<String> orderHosts(List<String> hosts, String key) {
+		List<String> ordered = tieBreaker.orderHosts(hosts, key);
+		// Collections.sort is stable, so equally loaded hosts keep their round robin order
+		Collections.sort(ordered, new Comparator<String>() {
+			public int compare(String host1, String host2) {
+				int outstanding1 = getOutstanding(host1);
+				int outstanding2 = getOutstanding(host2);
+				return outstanding1 < outstanding2 ? -1 : (outstanding1 == outstanding2 ? 0 : 1);
+			}
+		});
+		return ordered;
+	}
+
+	public void connectionAcquired(String host) {
+		counterFor(host).incrementAndGet();
+	}
+
+	public void connectionReleased(String host, long elapsedNanos) {
+		counterFor(host).decrementAndGet();
+	}
+	
+	public int getOutstanding(String host) {
+		AtomicInteger counter = outstanding.get(host);
+		return counter == null ? 0 : counter.get();
+	}
+	
+	private AtomicInteger counterFor(String host) {
+		AtomicInteger counter = outstanding.get(host);
+		if (counter == null) {
+			AtomicInteger created = new AtomicInteger();
+			counter = outstanding.putIfAbsent(host, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+}
@@ -0,0 +1,24 @@
+package org.nate.cassandra.connector;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+public class RandomPolicy implements HostSelectionPolicy {
+
+	private final Random random = new Random();
+	
+	public List<String> orderHosts(List<String> hosts, String key) {
+		List<String> ordered = Lists.newArrayList(hosts);
+		Collections.shuffle(ordered, random);
+		return ordered;
+	}
+
+	public void connectionAcquired(String host) {
+	}
+
+	public void connectionReleased(String host, long elapsedNanos) {
+	}
+}
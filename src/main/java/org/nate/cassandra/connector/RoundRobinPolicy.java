@@ -0,0 +1,29 @@
+package org.nate.cassandra.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RoundRobinPolicy implements HostSelectionPolicy {
+
+	private final AtomicInteger next = new AtomicInteger();
+	
+	public List<String> orderHosts(List<String> hosts, String key) {
+		int size = hosts.size();
+		List<String> ordered = new ArrayList<String>(size);
+		if (size == 0) {
+			return ordered;
+		}
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+		for (int i = 0; i < size; i++) {
+			ordered.add(hosts.get((start + i) % size));
+		}
+		return ordered;
+	}
+
+	public void connectionAcquired(String host) {
+	}
+
+	public void connectionReleased(String host, long elapsedNanos) {
+	}
+}
@@ -0,0 +1,148 @@
+package org.nate.cassandra.connector;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nate.cassandra.CassandraOperationException;
+import org.slf4j.Logger;
+
+/**
+ * A few threads each running a selector over many {@link AsyncConnection}s.  Connections are
+ * spread over the selectors round robin, and everything touching a connection's channel runs on 
+ * its selector's thread.
+ */
+public class SelectorPool {
+
+	private static final long TICK_MILLIS = 100L;
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(SelectorPool.class);
+	private final Loop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public SelectorPool(int threads) throws CassandraOperationException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("A selector pool needs at least one thread");
+		}
+		loops = new Loop[threads];
+		for (int i = 0; i < threads; i++) {
+			try {
+				loops[i] = new Loop(Selector.open());
+			} catch (IOException e) {
+				shutdown();
+				throw new CassandraOperationException("Unable to open selector", e);
+			}
+			Thread thread = new Thread(loops[i], "cassandra-selector-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	Loop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * Stops the selector threads and fails whatever is still in flight on their connections.
+	 */
+	public void shutdown() {
+		for (Loop loop : loops) {
+			if (loop != null) {
+				loop.shutdown();
+			}
+		}
+	}
+
+	class Loop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean running = true;
+
+		Loop(Selector selector) {
+			this.selector = selector;
+		}
+
+		Selector getSelector() {
+			return selector;
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+			if (!running) {
+				// the loop may have drained its tasks for the last time already
+				while ((task = tasks.poll()) != null) {
+					runTask(task);
+				}
+			}
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select(TICK_MILLIS);
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						runTask(task);
+					}
+					
+					// whatever goes wrong with one connection fails that connection, never the loop
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						AsyncConnection connection = (AsyncConnection) key.attachment();
+						try {
+							connection.handle(key);
+						} catch (RuntimeException e) {
+							connection.fail(e);
+						}
+					}
+					
+					long now = System.currentTimeMillis();
+					for (SelectionKey key : selector.keys()) {
+						AsyncConnection connection = (AsyncConnection) key.attachment();
+						try {
+							connection.checkTimeout(now);
+						} catch (RuntimeException e) {
+							connection.fail(e);
+						}
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Selector thread failed", e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((AsyncConnection) key.attachment()).fail(new IOException("Selector pool shut down"));
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					logger.debug("Unable to close selector", e);
+				}
+				// connections registering now see the closed selector and fail their calls
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					runTask(task);
+				}
+			}
+		}
+
+		private void runTask(Runnable task) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.warn("Selector task failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.nate.cassandra.connector;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.slf4j.Logger;
+
+/**
+ * Routes key specific operations to a host that is a replica for the key so the coordinator
+ * does not have to forward the request.  Replicas (and all other hosts after them) are 
+ * ordered by the child policy.  The ring is loaded from describe_ring by the 
+ * {@link ConnectionPool} and refreshed every ringRefreshInterval milliseconds.
+ */
+public class TokenAwarePolicy implements HostSelectionPolicy {
+
+	private Logger logger = org.slf4j.LoggerFactory.getLogger(TokenAwarePolicy.class);
+	private final HostSelectionPolicy childPolicy;
+	private final HostAddresses addresses = new HostAddresses();
+	private volatile TokenRing ring;
+	private volatile long ringUpdatedAt = 0L;
+	private String keyspace;
+	private long ringRefreshInterval = 300000L;
+	
+	public TokenAwarePolicy() {
+		this(new RoundRobinPolicy());
+	}
+	
+	public TokenAwarePolicy(HostSelectionPolicy childPolicy) {
+		this.childPolicy = childPolicy;
+	}
+	
+	public List<String> orderHosts(List<String> hosts, String key) {
+		List<String> ordered = childPolicy.orderHosts(hosts, key);
+		TokenRing currentRing = ring;
+		if (key == null || currentRing == null) {
+			return ordered;
+		}
+		
+		return addresses.preferring(ordered, new HashSet<String>(currentRing.replicasFor(key)));
+	}
+
+	public void connectionAcquired(String host) {
+		childPolicy.connectionAcquired(host);
+	}
+
+	public void connectionReleased(String host, long elapsedNanos) {
+		childPolicy.connectionReleased(host, elapsedNanos);
+	}
+	
+	public boolean needsRingRefresh() {
+		return System.currentTimeMillis() - ringUpdatedAt > ringRefreshInterval;
+	}
+	
+	public void updateRing(String partitioner, List<TokenRange> ranges) {
+		this.ring = new TokenRing(partitioner, ranges);
+		this.ringUpdatedAt = System.currentTimeMillis();
+		logger.debug("Token ring updated with " + ranges.size() + " ranges");
+	}
+	
+	/**
+	 * Records a failed refresh so we do not retry describe_ring on every single checkout.
+	 */
+	public void ringRefreshFailed() {
+		this.ringUpdatedAt = System.currentTimeMillis();
+	}
+
+	public TokenRing getRing() {
+		return ring;
+	}
+
+	public String getKeyspace() {
+		return keyspace;
+	}
+
+	/**
+	 * Overrides the keyspace whose ring is loaded.  By default the ring of the keyspace 
+	 * configured on the {@link ConnectionPool} is used.
+	 */
+	public void setKeyspace(String keyspace) {
+		this.keyspace = keyspace;
+	}
+
+	public void setRingRefreshInterval(long ringRefreshInterval) {
+		this.ringRefreshInterval = ringRefreshInterval;
+	}
+}
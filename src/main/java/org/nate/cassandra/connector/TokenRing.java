@@ -0,0 +1,90 @@
+package org.nate.cassandra.connector;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Client side copy of the ring as reported by describe_ring, used to work out which 
+ * endpoints own a given row key.
+ */
+public class TokenRing {
+
+	public static final String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+	
+	private final boolean randomPartitioner;
+	private final List<TokenRange> ranges;
+	@SuppressWarnings("rawtypes")
+	private final TreeMap<Comparable, List<String>> endpointsByEndToken = new TreeMap<Comparable, List<String>>();
+	
+	@SuppressWarnings("rawtypes")
+	public TokenRing(String partitioner, List<TokenRange> ranges) {
+		this.randomPartitioner = RANDOM_PARTITIONER.equals(partitioner);
+		this.ranges = Collections.unmodifiableList(Lists.newArrayList(ranges));
+		for (TokenRange range : ranges) {
+			Comparable endToken = parseToken(range.getEnd_token());
+			endpointsByEndToken.put(endToken, Collections.unmodifiableList(Lists.newArrayList(range.getEndpoints())));
+		}
+	}
+	
+	/**
+	 * A range (start, end] is owned by its endpoints, so the replicas for a key are the 
+	 * endpoints of the first range whose end token is at or after the key's token.
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<String> replicasFor(String key) {
+		if (endpointsByEndToken.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Map.Entry<Comparable, List<String>> owner = endpointsByEndToken.ceilingEntry(tokenFor(key));
+		if (owner == null) {
+			owner = endpointsByEndToken.firstEntry();
+		}
+		return owner.getValue();
+	}
+	
+	@SuppressWarnings("rawtypes")
+	public Comparable tokenFor(String key) {
+		if (!randomPartitioner) {
+			return key;
+		}
+		if (key.length() == 0) {
+			return BigInteger.ZERO;
+		}
+		// mirrors FBUtilities.hash on the server, which uses the platform charset as well
+		return new BigInteger(md5(key.getBytes())).abs();
+	}
+	
+	public String tokenStringFor(String key) {
+		return tokenFor(key).toString();
+	}
+	
+	public List<TokenRange> getRanges() {
+		return ranges;
+	}
+	
+	public boolean isRandomPartitioner() {
+		return randomPartitioner;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Comparable parseToken(String token) {
+		return randomPartitioner ? new BigInteger(token) : token;
+	}
+	
+	private static byte[] md5(byte[] data) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+}
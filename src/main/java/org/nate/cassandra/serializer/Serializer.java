@@ -0,0 +1,13 @@
+package org.nate.cassandra.serializer;
+
+/**
+ * Converts a column value to and from the bytes stored in Cassandra.  Implementations used
+ * through {@link org.nate.cassandra.annotation.Column#serializer()} need a public no argument
+ * constructor and must be thread safe.
+ */
+public interface Serializer<T> {
+
+	byte[] toBytes(T value);
+	
+	T fromBytes(byte[] bytes);
+}
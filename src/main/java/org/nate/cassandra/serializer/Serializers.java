@@ -0,0 +1,211 @@
+package org.nate.cassandra.serializer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the serializer used for each field type when a Column does not name one, plus
+ * the built in serializers.
+ * <p>
+ * Numbers default to their decimal text so rows written by earlier versions stay readable.
+ * The fixed width binary encodings are smaller and cheaper, select them per Column or register
+ * them as the default for a type once the data has been migrated.
+ */
+public class Serializers {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Map<Class<?>, Class<?>> boxedTypes = new HashMap<Class<?>, Class<?>>();
+	private static final ConcurrentMap<Class<?>, Serializer<?>> defaults = new ConcurrentHashMap<Class<?>, Serializer<?>>();
+	private static final ConcurrentMap<Class<?>, Serializer<?>> instances = new ConcurrentHashMap<Class<?>, Serializer<?>>();
+	
+	static {
+		boxedTypes.put(int.class, Integer.class);
+		boxedTypes.put(long.class, Long.class);
+		boxedTypes.put(double.class, Double.class);
+		boxedTypes.put(float.class, Float.class);
+		boxedTypes.put(short.class, Short.class);
+		boxedTypes.put(byte.class, Byte.class);
+		boxedTypes.put(boolean.class, Boolean.class);
+		
+		defaults.put(String.class, new StringSerializer());
+		defaults.put(byte[].class, new BytesSerializer());
+		defaults.put(Boolean.class, new BooleanSerializer());
+		defaults.put(UUID.class, new UUIDSerializer());
+		defaults.put(Date.class, new DateSerializer());
+	}
+	
+	/**
+	 * @return the serializer for values of the given type, or null when there is none
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static Serializer<Object> forType(Class<?> type) {
+		Class<?> boxed = boxedTypes.containsKey(type) ? boxedTypes.get(type) : type;
+		Serializer<?> serializer = defaults.get(boxed);
+		if (serializer == null && Number.class.isAssignableFrom(boxed)) {
+			try {
+				Serializer<?> decimal = new DecimalStringSerializer(boxed);
+				serializer = defaults.putIfAbsent(boxed, decimal);
+				if (serializer == null) {
+					serializer = decimal;
+				}
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+		return (Serializer<Object>) serializer;
+	}
+	
+	/**
+	 * Makes the serializer the default for every Column of the given type, or its primitive, that does 
+	 * not name its own.  An entity class resolves its serializers once, the first time it is mapped, 
+	 * so register defaults at startup; classes already mapped keep the serializers they resolved.
+	 */
+	public static <T> void register(Class<T> type, Serializer<? super T> serializer) {
+		defaults.put(boxedTypes.containsKey(type) ? boxedTypes.get(type) : type, serializer);
+	}
+	
+	/**
+	 * @return the shared instance of the given serializer class
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static Serializer<Object> instanceOf(Class<? extends Serializer> serializerClass) {
+		Serializer<?> serializer = instances.get(serializerClass);
+		if (serializer == null) {
+			try {
+				Serializer<?> created = serializerClass.newInstance();
+				serializer = instances.putIfAbsent(serializerClass, created);
+				if (serializer == null) {
+					serializer = created;
+				}
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Unable to create serializer " + serializerClass.getName(), e);
+			}
+		}
+		return (Serializer<Object>) serializer;
+	}
+	
+	public static class StringSerializer implements Serializer<String> {
+		public byte[] toBytes(String value) {
+			return value.getBytes(UTF_8);
+		}
+		
+		public String fromBytes(byte[] bytes) {
+			return new String(bytes, UTF_8);
+		}
+	}
+	
+	public static class BytesSerializer implements Serializer<byte[]> {
+		public byte[] toBytes(byte[] value) {
+			return value;
+		}
+		
+		public byte[] fromBytes(byte[] bytes) {
+			return bytes;
+		}
+	}
+	
+	public static class IntegerSerializer implements Serializer<Integer> {
+		public byte[] toBytes(Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+		
+		public Integer fromBytes(byte[] bytes) {
+			return bytes.length == 4 ? ByteBuffer.wrap(bytes).getInt() : null;
+		}
+	}
+	
+	public static class LongSerializer implements Serializer<Long> {
+		public byte[] toBytes(Long value) {
+			return ByteBuffer.allocate(8).putLong(value).array();
+		}
+		
+		public Long fromBytes(byte[] bytes) {
+			return bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : null;
+		}
+	}
+	
+	public static class DoubleSerializer implements Serializer<Double> {
+		public byte[] toBytes(Double value) {
+			return ByteBuffer.allocate(8).putDouble(value).array();
+		}
+		
+		public Double fromBytes(byte[] bytes) {
+			return bytes.length == 8 ? ByteBuffer.wrap(bytes).getDouble() : null;
+		}
+	}
+	
+	public static class BooleanSerializer implements Serializer<Boolean> {
+		public byte[] toBytes(Boolean value) {
+			return new byte[]{(byte) (value ? 1 : 0)};
+		}
+		
+		public Boolean fromBytes(byte[] bytes) {
+			return bytes.length == 1 ? bytes[0] != 0 : null;
+		}
+	}
+	
+	public static class UUIDSerializer implements Serializer<UUID> {
+		public byte[] toBytes(UUID value) {
+			return ByteBuffer.allocate(16).putLong(value.getMostSignificantBits()).putLong(value.getLeastSignificantBits()).array();
+		}
+		
+		public UUID fromBytes(byte[] bytes) {
+			if (bytes.length != 16) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			return new UUID(buffer.getLong(), buffer.getLong());
+		}
+	}
+	
+	/**
+	 * Dates as milliseconds since the epoch, big endian.
+	 */
+	public static class DateSerializer implements Serializer<Date> {
+		public byte[] toBytes(Date value) {
+			return ByteBuffer.allocate(8).putLong(value.getTime()).array();
+		}
+		
+		public Date fromBytes(byte[] bytes) {
+			return bytes.length == 8 ? new Date(ByteBuffer.wrap(bytes).getLong()) : null;
+		}
+	}
+	
+	/**
+	 * Numbers as their decimal text, the format used before serializers were introduced.  Text that 
+	 * does not parse reads as null.
+	 */
+	public static class DecimalStringSerializer<T extends Number> implements Serializer<T> {
+		private final Constructor<T> fromString;
+		
+		public DecimalStringSerializer(Class<T> type) {
+			try {
+				this.fromString = type.getConstructor(String.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(type.getName() + " can not be created from a String", e);
+			}
+		}
+		
+		public byte[] toBytes(T value) {
+			return value.toString().getBytes(UTF_8);
+		}
+		
+		public T fromBytes(byte[] bytes) {
+			try {
+				return fromString.newInstance(new Object[]{new String(bytes, UTF_8).trim()});
+			} catch (InvocationTargetException e) {
+				return null;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.nate.cassandra;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.TimedOutException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TSimpleServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nate.cassandra.connector.ConnectionFactory;
+import org.nate.cassandra.connector.SelectorPool;
+
+import com.google.common.collect.Lists;
+
+public class AsyncCassandraOperationsTest {
+
+	private final List<TServer> servers = new ArrayList<TServer>();
+	private SelectorPool selectors;
+	private CassandraOperations cassandra;
+
+	@Before
+	public void setup() {
+		selectors = new SelectorPool(1);
+		cassandra = new CassandraOperations();
+		cassandra.setKeyspaceName("Keyspace1");
+	}
+
+	@After
+	public void stopServers() {
+		selectors.shutdown();
+		for (TServer server : servers) {
+			server.stop();
+		}
+	}
+
+	@Test
+	public void readsFailOverToAnotherHost() throws Exception {
+		FakeHost timingOut = new FakeHost();
+		timingOut.timingOut = true;
+		FakeHost healthy = new FakeHost();
+		healthy.row("key1", "aStringColumn", "from the healthy host");
+		List<ConnectionFactory> factories = Lists.newArrayList(
+				new ConnectionFactory("localhost", start(timingOut), 1000), 
+				new ConnectionFactory("127.0.0.1", start(healthy), 1000));
+		AsyncCassandraOperations async = new AsyncCassandraOperations(cassandra, factories, 1, selectors);
+		
+		StandardColumnTestClass result = (StandardColumnTestClass) async.get(StandardColumnTestClass.class, "key1").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals("from the healthy host", result.getAStringColumn());
+		Assert.assertEquals(Lists.newArrayList("get_slice"), timingOut.calls);
+		Assert.assertEquals(Lists.newArrayList("get_slice"), healthy.calls);
+		async.shutdown();
+	}
+
+	@Test
+	public void removeReadsTheRowThenDeletesItsColumns() throws Exception {
+		FakeHost host = new FakeHost();
+		host.row("key1", "aStringColumn", "a value");
+		host.row("key1", "anIntegerColumn", "7");
+		AsyncCassandraOperations async = new AsyncCassandraOperations(cassandra, 
+				Lists.newArrayList(new ConnectionFactory("localhost", start(host), 1000)), 1, selectors);
+		
+		async.remove(StandardColumnTestClass.class, "key1").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Lists.newArrayList("get_slice", "batch_mutate"), host.calls);
+		Mutation deletion = host.mutations.get(0).get("key1").get("Standard1").get(0);
+		Assert.assertEquals(2, deletion.getDeletion().getPredicate().getColumn_names().size());
+		
+		// nothing to delete for a row that does not exist
+		async.remove(StandardColumnTestClass.class, "missing").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Lists.newArrayList("get_slice", "batch_mutate", "get_slice"), host.calls);
+		async.shutdown();
+	}
+
+	@Test
+	public void writesInvalidateTheNearCacheBeforeTheyComplete() throws Exception {
+		NearCache nearCache = new NearCache(10, 60000L);
+		cassandra.setNearCache(nearCache);
+		FakeHost host = new FakeHost();
+		AsyncCassandraOperations async = new AsyncCassandraOperations(cassandra, 
+				Lists.newArrayList(new ConnectionFactory("localhost", start(host), 1000)), 1, selectors);
+		
+		nearCache.put("Standard1", "key1", "row", "stale", nearCache.version("Standard1", "key1"));
+		StandardColumnTestClass inserted = new StandardColumnTestClass();
+		inserted.setKey("key1");
+		inserted.setAStringColumn("fresh");
+		async.insert(inserted).get(5, TimeUnit.SECONDS);
+		Assert.assertNull(nearCache.get("Standard1", "key1", "row"));
+		
+		nearCache.put("Standard1", "key2", "row", "stale", nearCache.version("Standard1", "key2"));
+		async.insertColumnValue("Standard1", "key2", "aStringColumn", "fresh").get(5, TimeUnit.SECONDS);
+		Assert.assertNull(nearCache.get("Standard1", "key2", "row"));
+		Assert.assertEquals(Lists.newArrayList("batch_mutate", "insert"), host.calls);
+		async.shutdown();
+	}
+
+	/**
+	 * Serves get_slice from the rows it was given and records every call and batch_mutate it gets.
+	 */
+	private static class FakeHost implements InvocationHandler {
+		private final Map<String, List<ColumnOrSuperColumn>> rows = new HashMap<String, List<ColumnOrSuperColumn>>();
+		private final List<String> calls = new CopyOnWriteArrayList<String>();
+		private final List<Map<String, Map<String, List<Mutation>>>> mutations = new CopyOnWriteArrayList<Map<String, Map<String, List<Mutation>>>>();
+		private volatile boolean timingOut = false;
+
+		void row(String key, String column, String value) {
+			if (!rows.containsKey(key)) {
+				rows.put(key, new ArrayList<ColumnOrSuperColumn>());
+			}
+			ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
+			columnOrSuper.setColumn(new Column(column.getBytes(), value.getBytes(), 0L));
+			rows.get(key).add(columnOrSuper);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			calls.add(method.getName());
+			if (timingOut) {
+				throw new TimedOutException();
+			}
+			if (method.getName().equals("get_slice")) {
+				List<ColumnOrSuperColumn> row = rows.get(args[1]);
+				return row == null ? Collections.<ColumnOrSuperColumn>emptyList() : row;
+			} else if (method.getName().equals("batch_mutate")) {
+				mutations.add((Map<String, Map<String, List<Mutation>>>) args[1]);
+			}
+			return null;
+		}
+	}
+
+	private int start(FakeHost host) throws Exception {
+		Cassandra.Iface handler = (Cassandra.Iface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Cassandra.Iface.class}, host);
+		ServerSocket socket = new ServerSocket(0);
+		final TServer server = new TSimpleServer(new Cassandra.Processor(handler), new TServerSocket(socket), new TFramedTransport.Factory(), new TBinaryProtocol.Factory());
+		Thread serving = new Thread() {
+			public void run() {
+				server.serve();
+			}
+		};
+		serving.setDaemon(true);
+		serving.start();
+		servers.add(server);
+		return socket.getLocalPort();
+	}
+}
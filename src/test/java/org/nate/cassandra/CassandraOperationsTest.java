@@ -1,13 +1,27 @@
 package org.nate.cassandra;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.annotation.Key;
 import org.nate.cassandra.connector.ConnectionFactory;
 import org.nate.cassandra.connector.ConnectionPool;
+import org.nate.functions.functors.ActionFn;
 
 import com.google.common.collect.Lists;
 
@@ -106,6 +120,14 @@ public class CassandraOperationsTest {
 		Assert.assertNull(resultObject.getAnUnannotatedField());
 	}
 	
+	@Test
+	public void testF_InsertObjectAndRetrieveItsProjection() throws Exception {			
+		StandardColumnTestClass resultObject = (StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "objectKey", "anIntegerColumn");
+		Assert.assertEquals("objectKey", resultObject.getKey());
+		Assert.assertNotNull(resultObject.getAnIntegerColumn());
+		Assert.assertNull(resultObject.getAStringColumn());
+	}
+	
 	@Test
 	public void testF_A_RetrieveNotExists() throws Exception {			
 		StandardColumnTestClass resultObject = (StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "unknownKey");
@@ -118,6 +140,133 @@ public class CassandraOperationsTest {
 		cassandra.insert(testObject);	
 	}
 	
+	@Test
+	public void testF3_InsertAllAndRetrieveThem() throws Exception {
+		cassandra.setMaxMutationsPerBatch(3);
+		List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("bulkKey" + i);
+			testObject.setAStringColumn("bulk value " + i);
+			testObject.setAnIntegerColumn(i);
+			testObjects.add(testObject);
+		}
+		cassandra.insertAll(testObjects);
+		
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass resultObject = (StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "bulkKey" + i);
+			Assert.assertEquals("bulk value " + i, resultObject.getAStringColumn());
+			Assert.assertEquals(new Integer(i), resultObject.getAnIntegerColumn());
+			cassandra.remove(StandardColumnTestClass.class, "bulkKey" + i);
+		}
+	}
+	
+	@Test
+	public void testF4_BatchWriterInsertAndRemove() throws Exception {
+		BatchWriter writer = new BatchWriter(cassandra, 4, 10L, 2, 2);
+		List<Future<Void>> writes = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("batchKey" + i);
+			testObject.setAStringColumn("batch value " + i);
+			testObject.setAnIntegerColumn(i);
+			writes.add(writer.insert(testObject));
+		}
+		for (Future<Void> write : writes) {
+			write.get();
+		}
+		
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass resultObject = (StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "batchKey" + i);
+			Assert.assertEquals("batch value " + i, resultObject.getAStringColumn());
+			writer.remove(StandardColumnTestClass.class, "batchKey" + i);
+		}
+		writer.close();
+		Assert.assertNull(cassandra.get(StandardColumnTestClass.class, "batchKey0"));
+	}
+	
+	@Test
+	public void testF4_BatchWriterCloseWaitsForARunningFlush() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> sendingThreads = new CopyOnWriteArrayList<String>();
+		CassandraOperations slowCassandra = new CassandraOperations() {
+			@Override
+			void sendBatch(Map<String, Map<String, List<Mutation>>> batch, ConsistencyLevel consistency) {
+				sendingThreads.add(Thread.currentThread().getName());
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		final BatchWriter writer = new BatchWriter(slowCassandra, 1000, 10L, 1, 1);
+		final List<Future<Void>> writes = Lists.newArrayList();
+		// one batch blocks the sender, one waits in the queue and the next is sent by the flusher itself
+		for (int i = 0; i < 50 && !sentByFlusher(sendingThreads); i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("closingKey" + i);
+			testObject.setAStringColumn("closing value " + i);
+			writes.add(writer.insert(testObject));
+			Thread.sleep(30L);
+		}
+		Assert.assertTrue(sentByFlusher(sendingThreads));
+		
+		final CountDownLatch closed = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					writer.close();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				closed.countDown();
+			}
+		}).start();
+		Assert.assertFalse(closed.await(100L, TimeUnit.MILLISECONDS));
+		
+		release.countDown();
+		Assert.assertTrue(closed.await(2000L, TimeUnit.MILLISECONDS));
+		for (Future<Void> write : writes) {
+			Assert.assertTrue(write.isDone());
+			write.get();
+		}
+	}
+	
+	private boolean sentByFlusher(List<String> sendingThreads) {
+		for (String thread : sendingThreads) {
+			if (thread.startsWith("cassandra-batch-flusher")) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Test
+	public void testF5_GetManyInBatches() throws Exception {
+		List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		List<String> keys = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("manyKey" + i);
+			testObject.setAnIntegerColumn(i);
+			testObjects.add(testObject);
+			keys.add(0, testObject.getKey());
+		}
+		cassandra.insertAll(testObjects);
+		keys.add("missingKey");
+		
+		cassandra.setMultigetBatchSize(2);
+		cassandra.setMultigetParallelism(2);
+		Map<String, StandardColumnTestClass> results = cassandra.getMany(StandardColumnTestClass.class, keys);
+		Assert.assertEquals(Lists.newArrayList(keys.subList(0, 5)), Lists.newArrayList(results.keySet()));
+		Assert.assertEquals(new Integer(4), results.get("manyKey4").getAnIntegerColumn());
+		
+		for (StandardColumnTestClass testObject : testObjects) {
+			cassandra.remove(StandardColumnTestClass.class, testObject.getKey());
+		}
+	}
+	
 	@Test
 	public void testG_UpdateObjectAndRetrieveIt() throws Exception {
 		String key = "objectKey";
@@ -149,6 +298,234 @@ public class CassandraOperationsTest {
 		Assert.assertEquals(1, results.size());
 	}
 	
+	@Test
+	public void testI_GetAllPagesThroughEveryRow() throws Exception {
+		List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		for (int i = 0; i < 7; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("pagedKey" + i);
+			testObject.setAStringColumn("paged value " + i);
+			testObjects.add(testObject);
+		}
+		cassandra.insertAll(testObjects);
+		
+		cassandra.setRangePageSize(3);
+		List<Object> results = cassandra.getAll(StandardColumnTestClass.class);
+		Assert.assertEquals(8, results.size());
+		
+		for (StandardColumnTestClass testObject : testObjects) {
+			cassandra.remove(StandardColumnTestClass.class, testObject.getKey());
+		}
+	}
+	
+	@Test
+	public void testI_ScanPrefetchesPagesLazily() throws Exception {
+		List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("scanKey" + i);
+			testObject.setAStringColumn("scan value " + i);
+			testObjects.add(testObject);
+		}
+		cassandra.insertAll(testObjects);
+		
+		int scanned = 0;
+		for (StandardColumnTestClass result : cassandra.scan(StandardColumnTestClass.class, 2, 1)) {
+			Assert.assertNotNull(result.getKey());
+			scanned++;
+		}
+		Assert.assertEquals(6, scanned);
+		
+		RangeScan.ScanIterator<StandardColumnTestClass> abandoned = cassandra.scan(StandardColumnTestClass.class, 1, 1).iterator();
+		Assert.assertTrue(abandoned.hasNext());
+		abandoned.close();
+		
+		// an iterator that is dropped without close stops its fetcher once nobody takes a page
+		cassandra.setScanAbandonTimeout(200L);
+		Assert.assertTrue(cassandra.scan(StandardColumnTestClass.class, 1, 1).iterator().hasNext());
+		long deadline = System.currentTimeMillis() + 2000L;
+		while (scanThreadsAlive() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20L);
+		}
+		Assert.assertEquals(0, scanThreadsAlive());
+		
+		for (StandardColumnTestClass testObject : testObjects) {
+			cassandra.remove(StandardColumnTestClass.class, testObject.getKey());
+		}
+	}
+	
+	@Test
+	public void testI_ParallelScanCoversEveryTokenRange() throws Exception {
+		List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		for (int i = 0; i < 6; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey((i % 2 == 0 ? "a" : "z") + "ParallelKey" + i);
+			testObject.setAStringColumn("parallel value " + i);
+			testObjects.add(testObject);
+		}
+		cassandra.insertAll(testObjects);
+		
+		cassandra.setRangePageSize(2);
+		final Set<String> scannedKeys = Collections.synchronizedSet(new HashSet<String>());
+		long scanned = cassandra.parallelScan(StandardColumnTestClass.class, new ActionFn<StandardColumnTestClass>() {
+			public void apply(StandardColumnTestClass it) {
+				scannedKeys.add(it.getKey());
+			}
+		}, 2);
+		Assert.assertEquals(7, scanned);
+		Assert.assertEquals(7, scannedKeys.size());
+		
+		for (StandardColumnTestClass testObject : testObjects) {
+			cassandra.remove(StandardColumnTestClass.class, testObject.getKey());
+		}
+	}
+	
+	@Test
+	public void testI_ConsistencyComesFromTheViewThenTheEntityThenTheDefaults() throws Exception {
+		Assert.assertEquals(ConsistencyLevel.ONE, cassandra.getReadConsistency(StandardColumnTestClass.class));
+		Assert.assertEquals(ConsistencyLevel.QUORUM, cassandra.getReadConsistency(QuorumReadTestClass.class));
+		Assert.assertEquals(ConsistencyLevel.ONE, cassandra.getWriteConsistency(QuorumReadTestClass.class));
+		
+		cassandra.setDefaultConsistency(new ConsistencyPolicy(ConsistencyLevel.ONE, ConsistencyLevel.QUORUM));
+		Cassandra view = cassandra.withConsistency(new ConsistencyPolicy(ConsistencyLevel.ALL, null));
+		Assert.assertEquals(ConsistencyLevel.ALL, view.getReadConsistency(QuorumReadTestClass.class));
+		Assert.assertEquals(ConsistencyLevel.QUORUM, view.getWriteConsistency(QuorumReadTestClass.class));
+		Assert.assertEquals(ConsistencyLevel.ONE, cassandra.getReadConsistency(StandardColumnTestClass.class));
+		
+		StandardColumnTestClass testObject = new StandardColumnTestClass();
+		testObject.setKey("consistencyKey");
+		testObject.setAStringColumn("through a view");
+		view.insert(testObject);
+		Assert.assertEquals("through a view", ((StandardColumnTestClass) view.get(StandardColumnTestClass.class, "consistencyKey")).getAStringColumn());
+		view.remove(StandardColumnTestClass.class, "consistencyKey");
+	}
+	
+	@Test
+	public void testI_NearCacheServesRepeatedGetsUntilAWriteThroughTheClient() throws Exception {
+		NearCache nearCache = new NearCache(100, 60000L);
+		cassandra.setNearCache(nearCache);
+		
+		StandardColumnTestClass testObject = new StandardColumnTestClass();
+		testObject.setKey("cachedKey");
+		testObject.setAStringColumn("first");
+		testObject.setAnIntegerColumn(1);
+		cassandra.insert(testObject);
+		
+		Assert.assertEquals("first", ((StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "cachedKey")).getAStringColumn());
+		StandardColumnTestClass cached = (StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "cachedKey");
+		Assert.assertEquals("first", cached.getAStringColumn());
+		Assert.assertEquals(1, nearCache.getHitCount());
+		Assert.assertNotSame(cached, cassandra.get(StandardColumnTestClass.class, "cachedKey"));
+		
+		testObject.setAStringColumn("second");
+		cassandra.update(testObject);
+		Assert.assertEquals("second", ((StandardColumnTestClass) cassandra.get(StandardColumnTestClass.class, "cachedKey")).getAStringColumn());
+		Assert.assertEquals("second", cassandra.getColumnValue(STANDARD_1_COLUMN_FAMILY, "cachedKey", "aStringColumn"));
+		
+		cassandra.insertColumnValue(STANDARD_1_COLUMN_FAMILY, "cachedKey", "aStringColumn", "third");
+		Assert.assertEquals("third", cassandra.getColumnValue(STANDARD_1_COLUMN_FAMILY, "cachedKey", "aStringColumn"));
+		
+		cassandra.remove(StandardColumnTestClass.class, "cachedKey");
+		Assert.assertNull(cassandra.get(StandardColumnTestClass.class, "cachedKey"));
+		Assert.assertNull(cassandra.getColumnValue(STANDARD_1_COLUMN_FAMILY, "cachedKey", "aStringColumn"));
+	}
+	
+	@Test
+	public void testI_BatchedGetsEachGetTheirOwnRow() throws Exception {
+		cassandra.setReadBatchWindow(200L);
+		final List<StandardColumnTestClass> testObjects = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			StandardColumnTestClass testObject = new StandardColumnTestClass();
+			testObject.setKey("batchedKey" + i);
+			testObject.setAStringColumn("value" + i);
+			testObjects.add(testObject);
+		}
+		cassandra.insertAll(testObjects);
+		
+		final Map<String, Object> results = Collections.synchronizedMap(new HashMap<String, Object>());
+		List<Thread> readers = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			final String key = "batchedKey" + i;
+			Thread reader = new Thread() {
+				public void run() {
+					try {
+						results.put(key, cassandra.get(StandardColumnTestClass.class, key));
+					} catch (CassandraOperationException e) {
+						results.put(key, e);
+					}
+				}
+			};
+			readers.add(reader);
+			reader.start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		
+		Assert.assertEquals(5, results.size());
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals("value" + i, ((StandardColumnTestClass) results.get("batchedKey" + i)).getAStringColumn());
+		}
+		Assert.assertNull(results.get("batchedKey4"));
+		for (StandardColumnTestClass testObject : testObjects) {
+			cassandra.remove(StandardColumnTestClass.class, testObject.getKey());
+		}
+	}
+	
+	@Test
+	public void testI_DoAllGathersResultsInOrder() throws Exception {
+		List<Operation<String>> lookups = Lists.newArrayList();
+		for (int i = 0; i < 5; i++) {
+			final String key = "fanOutKey" + i;
+			cassandra.insertColumnValue(STANDARD_1_COLUMN_FAMILY, key, "name", "value" + i);
+			lookups.add(new ReadOperation<String>(cassandra, key) {
+				public String work() throws Exception {
+					return new String(client.get("Keyspace1", key, new CassandraOperationUtils().createColumnPath(STANDARD_1_COLUMN_FAMILY, "name".getBytes()), ConsistencyLevel.ONE).getColumn().getValue());
+				}
+			});
+		}
+		Assert.assertEquals(Lists.newArrayList("value0", "value1", "value2", "value3", "value4"), cassandra.doAll(lookups));
+		
+		lookups.add(new ReadOperation<String>(cassandra) {
+			public String work() throws Exception {
+				throw new IllegalStateException("lookup failed");
+			}
+		});
+		try {
+			cassandra.doAll(lookups);
+			Assert.fail("should have failed");
+		} catch (CassandraOperationException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		for (int i = 0; i < 5; i++) {
+			cassandra.removeColumnValue(STANDARD_1_COLUMN_FAMILY, "fanOutKey" + i, "name");
+		}
+	}
+	
+	@Test
+	public void testI_TokenRingUsesTheOperationsKeyspace() throws Exception {
+		Assert.assertEquals("Keyspace1", cassandra.getConnectionPool().getKeyspace());
+		
+		cassandra.setKeyspaceName("Keyspace2");
+		Assert.assertEquals("Keyspace2", cassandra.getConnectionPool().getKeyspace());
+		cassandra.setKeyspaceName("Keyspace1");
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testI_ScanRejectsPageSizeBelowOne() throws Exception {
+		cassandra.scan(StandardColumnTestClass.class, 0, 0);
+	}
+	
+	private int scanThreadsAlive() {
+		int alive = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && "cassandra-range-scan".equals(thread.getName())) {
+				alive++;
+			}
+		}
+		return alive;
+	}
+	
 	@Test
 	public void testJ_CleanUpTheMess() throws Exception {		
 		cassandra.remove(StandardColumnTestClass.class, "objectKey");
@@ -161,4 +538,10 @@ public class CassandraOperationsTest {
 	public class IncorrectlyAnnotatedStandardColumnTestClass {
 		
 	}
+	
+	@ColumnFamily(name="Standard1", readConsistency="QUORUM")
+	public static class QuorumReadTestClass {
+		@Key
+		private String key;
+	}
 }
@@ -0,0 +1,56 @@
+package org.nate.cassandra;
+
+import org.apache.cassandra.thrift.SliceRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnIndexTest {
+
+	@Test
+	public void numbersSortInValueOrder() {
+		ColumnIndex longs = new ColumnIndex("Indexes", "Standard1:long", Long.class);
+		assertSortsBefore(longs.entryName(-100L, "a"), longs.entryName(-1L, "a"));
+		assertSortsBefore(longs.entryName(-1L, "z"), longs.entryName(0L, "a"));
+		assertSortsBefore(longs.entryName(9L, "a"), longs.entryName(10L, "a"));
+
+		ColumnIndex doubles = new ColumnIndex("Indexes", "Standard1:double", double.class);
+		assertSortsBefore(doubles.entryName(-2.5d, "a"), doubles.entryName(-0.5d, "a"));
+		assertSortsBefore(doubles.entryName(-0.5d, "a"), doubles.entryName(0.25d, "a"));
+		assertSortsBefore(doubles.entryName(0.25d, "a"), doubles.entryName(1e10d, "a"));
+	}
+
+	@Test
+	public void stringsSortInValueOrderWhateverTheirBytes() {
+		ColumnIndex strings = new ColumnIndex("Indexes", "Standard1:string", String.class);
+		assertSortsBefore(strings.entryName("ab", "z"), strings.entryName("ab\u0000", "a"));
+		assertSortsBefore(strings.entryName("ab\u0000", "a"), strings.entryName("ab\u0001", "a"));
+		assertSortsBefore(strings.entryName("ab\u0001", "a"), strings.entryName("abc", "a"));
+		
+		SliceRange greaterThanAb = strings.rangeFor(QueryConditional.GREATER_THAN, ColumnIndex.comparable("ab"), 10);
+		assertSortsBefore(strings.entryName("ab", "z"), greaterThanAb.getStart());
+		assertSortsBefore(greaterThanAb.getStart(), strings.entryName("ab\u0000", "a"));
+	}
+
+	@Test
+	public void operandsThatCannotBeEncodedExactlyAreNotLookedUp() {
+		ColumnIndex integers = new ColumnIndex("Indexes", "Standard1:int", int.class);
+		Assert.assertNull(integers.rangeFor(QueryConditional.EQUAL, ColumnIndex.comparable(1.5d), 10));
+		Assert.assertNull(integers.rangeFor(QueryConditional.NOT_EQUAL, ColumnIndex.comparable(1), 10));
+		Assert.assertNotNull(integers.rangeFor(QueryConditional.EQUAL, ColumnIndex.comparable(1), 10));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsTypesWithoutAnOrderedEncoding() {
+		new ColumnIndex("Indexes", "Standard1:bytes", byte[].class);
+	}
+
+	private void assertSortsBefore(byte[] lower, byte[] higher) {
+		for (int i = 0; i < Math.min(lower.length, higher.length); i++) {
+			if (lower[i] != higher[i]) {
+				Assert.assertTrue((lower[i] & 0xff) < (higher[i] & 0xff));
+				return;
+			}
+		}
+		Assert.assertTrue(lower.length < higher.length);
+	}
+}
@@ -0,0 +1,61 @@
+package org.nate.cassandra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EntityMapperTest {
+
+	@After
+	public void unregisterMappers() {
+		EntityMapper.unregister(HandMappedTestClass.class);
+	}
+
+	@Test
+	public void roundTripsThroughColumns() throws Exception {
+		StandardColumnTestClass entity = new StandardColumnTestClass();
+		entity.setKey("mapperKey");
+		entity.setAStringColumn("a value");
+		entity.setAnIntegerColumn(7);
+		entity.setAnUnannotatedField("not mapped");
+
+		EntityMapper<StandardColumnTestClass> mapper = EntityMapper.forClass(StandardColumnTestClass.class);
+		List<Column> columns = mapper.toColumns(entity, 1L);
+		Assert.assertEquals(2, columns.size());
+
+		List<ColumnOrSuperColumn> row = new ArrayList<ColumnOrSuperColumn>();
+		for (Column column : columns) {
+			ColumnOrSuperColumn columnOrSuper = new ColumnOrSuperColumn();
+			columnOrSuper.setColumn(column);
+			row.add(columnOrSuper);
+		}
+		StandardColumnTestClass mapped = mapper.fromColumns("mapperKey", row);
+		Assert.assertEquals("mapperKey", mapped.getKey());
+		Assert.assertEquals("a value", mapped.getAStringColumn());
+		Assert.assertEquals(new Integer(7), mapped.getAnIntegerColumn());
+		Assert.assertNull(mapped.getAnUnannotatedField());
+	}
+
+	@Test
+	public void usesRegisteredMapper() throws Exception {
+		EntityMapper<HandMappedTestClass> handWritten = new EntityMapper<HandMappedTestClass>() {
+			public HandMappedTestClass fromColumns(String key, List<ColumnOrSuperColumn> columns) {
+				return new HandMappedTestClass();
+			}
+
+			public List<Column> toColumns(HandMappedTestClass entity, long timestamp) {
+				return new ArrayList<Column>();
+			}
+		};
+		EntityMapper.register(HandMappedTestClass.class, handWritten);
+		Assert.assertSame(handWritten, EntityMapper.forClass(HandMappedTestClass.class));
+	}
+
+	public static class HandMappedTestClass {
+	}
+}
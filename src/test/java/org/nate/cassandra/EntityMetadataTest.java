@@ -0,0 +1,88 @@
+package org.nate.cassandra;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.nate.cassandra.EntityMetadata.ColumnMetadata;
+import org.nate.cassandra.annotation.Column;
+import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.annotation.Key;
+import org.nate.cassandra.annotation.Lazy;
+
+public class EntityMetadataTest {
+
+	@Test
+	public void introspectsOncePerClass() {
+		Assert.assertSame(EntityMetadata.forClass(StandardColumnTestClass.class), EntityMetadata.forClass(StandardColumnTestClass.class));
+	}
+
+	@Test
+	public void mapsColumnFamilyKeyAndColumns() throws Exception {
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(StandardColumnTestClass.class);
+		Assert.assertEquals("Standard1", metadata.getColumnFamilyName());
+		Assert.assertEquals(2, metadata.getColumns().size());
+		Assert.assertNull(metadata.getColumn("anUnannotatedField"));
+
+		StandardColumnTestClass entity = (StandardColumnTestClass) metadata.newInstance();
+		metadata.setKey(entity, "aKey");
+		metadata.getColumn("anIntegerColumn").set(entity, 5);
+		Assert.assertEquals("aKey", metadata.getKey(entity));
+		Assert.assertEquals(new Integer(5), entity.getAnIntegerColumn());
+	}
+
+	@Test
+	public void usesColumnAndColumnFamilyNames() throws Exception {
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(RenamedTestClass.class);
+		Assert.assertEquals("RenamedTestClass", metadata.getColumnFamilyName());
+
+		ColumnMetadata column = metadata.getColumn("renamed");
+		Assert.assertNotNull(column);
+		Assert.assertSame(column, metadata.getColumnForField("value"));
+		Assert.assertEquals("renamed", new String(column.getNameBytes()));
+		Assert.assertSame(column, metadata.getColumn("renamed".getBytes()));
+		Assert.assertNull(metadata.getColumn("value".getBytes()));
+		Assert.assertEquals(new Long(42), column.fromBytes(column.toBytes(42L)));
+	}
+
+	@Test
+	public void lazyColumnsAreLeftOutOfTheDefaultColumns() {
+		Assert.assertNull(EntityMetadata.forClass(StandardColumnTestClass.class).getEagerColumnNames());
+		
+		EntityMetadata metadata = EntityMetadata.forClass(RenamedTestClass.class);
+		Assert.assertTrue(metadata.getColumn("blob").isLazy());
+		Assert.assertEquals(1, metadata.getEagerColumnNames().size());
+		Assert.assertEquals("renamed", new String(metadata.getEagerColumnNames().get(0)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsClassesWithOnlyLazyColumns() {
+		EntityMetadata.forClass(AllLazyTestClass.class);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsClassesThatAreNotColumnFamilies() {
+		EntityMetadata.forColumnFamily(String.class);
+	}
+
+	@ColumnFamily
+	public static class RenamedTestClass {
+		@Key
+		private String key;
+
+		@Column(name="renamed")
+		private Long value;
+
+		@Lazy
+		@Column
+		private byte[] blob;
+	}
+
+	@ColumnFamily
+	public static class AllLazyTestClass {
+		@Key
+		private String key;
+
+		@Lazy
+		@Column
+		private byte[] blob;
+	}
+}
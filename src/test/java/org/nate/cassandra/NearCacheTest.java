@@ -0,0 +1,46 @@
+package org.nate.cassandra;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NearCacheTest {
+
+	@Test
+	public void evictsTheLeastRecentlyUsedRow() {
+		NearCache cache = new NearCache(2, 60000L, 1);
+		cache.put("Standard1", "a", "row", "A", cache.version("Standard1", "a"));
+		cache.put("Standard1", "b", "row", "B", cache.version("Standard1", "b"));
+		Assert.assertEquals("A", cache.get("Standard1", "a", "row"));
+		
+		cache.put("Standard1", "c", "row", "C", cache.version("Standard1", "c"));
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("A", cache.get("Standard1", "a", "row"));
+		Assert.assertNull(cache.get("Standard1", "b", "row"));
+		Assert.assertEquals("C", cache.get("Standard1", "c", "row"));
+	}
+
+	@Test
+	public void expiresRowsAfterTheirTtl() throws Exception {
+		NearCache cache = new NearCache(10, 20L);
+		cache.put("Standard1", "a", "row", "A", cache.version("Standard1", "a"));
+		Assert.assertEquals("A", cache.get("Standard1", "a", "row"));
+		Thread.sleep(40L);
+		Assert.assertNull(cache.get("Standard1", "a", "row"));
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void doesNotCacheValuesReadBeforeAnInvalidation() {
+		NearCache cache = new NearCache(10, 60000L);
+		cache.put("Standard1", "a", "row", "A", cache.version("Standard1", "a"));
+		cache.put("Standard1", "a", "column:name", "name", cache.version("Standard1", "a"));
+		
+		long versionBeforeWrite = cache.version("Standard1", "a");
+		cache.invalidate("Standard1", "a");
+		Assert.assertNull(cache.get("Standard1", "a", "row"));
+		Assert.assertNull(cache.get("Standard1", "a", "column:name"));
+		
+		cache.put("Standard1", "a", "row", "stale", versionBeforeWrite);
+		Assert.assertNull(cache.get("Standard1", "a", "row"));
+	}
+}
@@ -0,0 +1,123 @@
+package org.nate.cassandra;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OperationFutureTest {
+
+	@Test
+	public void onlyTheFirstCompletionCounts() throws Exception {
+		OperationFuture<String> future = new OperationFuture<String>();
+		Assert.assertTrue(future.set("first"));
+		Assert.assertFalse(future.set("second"));
+		Assert.assertFalse(future.setException(new IllegalStateException()));
+		Assert.assertFalse(future.cancel(false));
+		Assert.assertFalse(future.isCancelled());
+		Assert.assertEquals("first", future.get());
+		
+		OperationFuture<String> cancelled = new OperationFuture<String>();
+		Assert.assertTrue(cancelled.cancel(false));
+		Assert.assertFalse(cancelled.set("too late"));
+		Assert.assertTrue(cancelled.isCancelled());
+		try {
+			cancelled.get();
+			Assert.fail("should have been cancelled");
+		} catch (CancellationException e) {
+			// expected
+		}
+		
+		OperationFuture<String> failed = new OperationFuture<String>();
+		Assert.assertTrue(failed.setException(new IllegalStateException("down")));
+		try {
+			failed.get(1, TimeUnit.SECONDS);
+			Assert.fail("should have failed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void listenersRunOnceWhenCompleteOrRightAwayAfter() throws Exception {
+		final OperationFuture<String> future = new OperationFuture<String>();
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable listener = new Runnable() {
+			public void run() {
+				Assert.assertEquals("value", future.getValue());
+				runs.incrementAndGet();
+			}
+		};
+		future.addListener(listener);
+		future.addListener(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("a failing listener does not stop the others");
+			}
+		});
+		future.addListener(listener);
+		Assert.assertEquals(0, runs.get());
+		
+		future.set("value");
+		Assert.assertEquals(2, runs.get());
+		future.cancel(false);
+		Assert.assertEquals(2, runs.get());
+		future.addListener(listener);
+		Assert.assertEquals(3, runs.get());
+	}
+
+	@Test
+	public void racingCompletionsHaveOneWinner() throws Exception {
+		for (int i = 0; i < 2000; i++) {
+			final OperationFuture<String> future = new OperationFuture<String>();
+			final AtomicInteger runs = new AtomicInteger();
+			final AtomicInteger wins = new AtomicInteger();
+			future.addListener(new Runnable() {
+				public void run() {
+					runs.incrementAndGet();
+				}
+			});
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread setter = new Thread() {
+				public void run() {
+					await(start);
+					if (future.set("value")) {
+						wins.incrementAndGet();
+					}
+				}
+			};
+			Thread canceller = new Thread() {
+				public void run() {
+					await(start);
+					if (future.cancel(false)) {
+						wins.incrementAndGet();
+					}
+				}
+			};
+			setter.start();
+			canceller.start();
+			start.countDown();
+			setter.join();
+			canceller.join();
+			
+			Assert.assertEquals(1, wins.get());
+			Assert.assertEquals(1, runs.get());
+			if (future.isCancelled()) {
+				Assert.assertNull(future.getValue());
+			} else {
+				Assert.assertEquals("value", future.get());
+			}
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
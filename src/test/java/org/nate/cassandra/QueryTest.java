@@ -1,12 +1,18 @@
 package org.nate.cassandra;
 
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.nate.cassandra.annotation.Column;
+import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.annotation.Indexed;
+import org.nate.cassandra.annotation.Key;
 import org.nate.cassandra.connector.ConnectionFactory;
 import org.nate.cassandra.connector.ConnectionPool;
+import org.nate.cassandra.connector.HostSelectionPolicy;
 import org.nate.functions.tuple.Triplet;
 
 import com.google.common.collect.Lists;
@@ -201,6 +207,123 @@ public class QueryTest {
 		Assert.assertEquals(firstObject.getAStringColumn(), results.get(0).getAStringColumn());
 	}
 	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testL_queryIndexedColumns() throws Exception {
+		Query<IndexedTestClass> indexedQuery = new Query<IndexedTestClass>(cassandra);
+		cassandra.insert(new IndexedTestClass("indexed1", "a@example.com", -5L));
+		cassandra.insert(new IndexedTestClass("indexed2", "b@example.com", 5L));
+		cassandra.insert(new IndexedTestClass("indexed3", "c@example.com", 50L));
+		Assert.assertEquals(3, cassandra.count("Indexes", "Indexed1:email"));
+		
+		List<IndexedTestClass> results = indexedQuery.execute(IndexedTestClass.class, new Triplet("email", QueryConditional.EQUAL, "b@example.com")).results;
+		Assert.assertEquals(1, results.size());
+		Assert.assertEquals("indexed2", results.get(0).key);
+		
+		results = indexedQuery.execute(IndexedTestClass.class, new Triplet("score", QueryConditional.LESS_THAN, "50")).results;
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals("indexed1", results.get(0).key);
+		Assert.assertEquals("indexed2", results.get(1).key);
+		
+		cassandra.update(new IndexedTestClass("indexed2", "b@example.com", 500L));
+		results = indexedQuery.execute(IndexedTestClass.class, new Triplet("score", QueryConditional.GREATER_THAN_EQUAL_TO, "5")).results;
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals("indexed3", results.get(0).key);
+		Assert.assertEquals("indexed2", results.get(1).key);
+		
+		// overwritten by a plain insert, the old entry stays in the index but must not match
+		cassandra.insert(new IndexedTestClass("indexed3", "c@example.com", 7L));
+		results = indexedQuery.execute(IndexedTestClass.class, new Triplet("score", QueryConditional.EQUAL, "50")).results;
+		Assert.assertTrue(results.isEmpty());
+		
+		cassandra.remove(IndexedTestClass.class, "indexed1");
+		cassandra.remove(IndexedTestClass.class, "indexed2");
+		cassandra.remove(IndexedTestClass.class, "indexed3");
+		Assert.assertEquals(0, cassandra.count("Indexes", "Indexed1:email"));
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testM_queryComparesNumbersByValue() throws Exception {
+		Query<NumericTestClass> numericQuery = new Query<NumericTestClass>(cassandra);
+		insertNumericRows();
+		try {
+			Assert.assertEquals(Lists.newArrayList("numeric3"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("big", QueryConditional.GREATER_THAN, "2147483647")).results));
+			Assert.assertEquals(Lists.newArrayList("numeric1"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("big", QueryConditional.LESS_THAN, "0")).results));
+			Assert.assertEquals(Lists.newArrayList("numeric2", "numeric3"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("big", QueryConditional.GREATER_THAN_EQUAL_TO, "5.0")).results));
+			
+			Assert.assertEquals(Lists.newArrayList("numeric1", "numeric2"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("ratio", QueryConditional.LESS_THAN_EQUAL_TO, "0.25")).results));
+			Assert.assertEquals(Lists.newArrayList("numeric3"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("ratio", QueryConditional.EQUAL, "10")).results));
+			Assert.assertEquals(3, numericQuery.execute(NumericTestClass.class, new Triplet("ratio", QueryConditional.GREATER_THAN, "-2")).results.size());
+			
+			// compared as text "-7" would sort after "-1"
+			Assert.assertEquals(Lists.newArrayList("numeric1"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("small", QueryConditional.LESS_THAN, "-1")).results));
+			Assert.assertEquals(Lists.newArrayList("numeric3"), keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("small", QueryConditional.GREATER_THAN, "9")).results));
+		} finally {
+			removeNumericRows();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testM_queryReturnsRowsMatchingSeveralTripletsOnce() throws Exception {
+		Query<NumericTestClass> numericQuery = new Query<NumericTestClass>(cassandra);
+		insertNumericRows();
+		try {
+			List<NumericTestClass> results = numericQuery.execute(NumericTestClass.class, 
+					new Triplet("small", QueryConditional.GREATER_THAN, "0"),
+					new Triplet("big", QueryConditional.GREATER_THAN_EQUAL_TO, "-5000000000"),
+					new Triplet("ratio", QueryConditional.EQUAL, "10")).results;
+			// grouped by the first triplet each row matches
+			Assert.assertEquals(Lists.newArrayList("numeric2", "numeric3", "numeric1"), keysOf(results));
+		} finally {
+			removeNumericRows();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testM_queryPagesThroughEveryRow() throws Exception {
+		Query<NumericTestClass> numericQuery = new Query<NumericTestClass>(cassandra);
+		insertNumericRows();
+		try {
+			for (int pageSize = 1; pageSize <= 4; pageSize++) {
+				numericQuery.setPageSize(pageSize);
+				Assert.assertEquals(Lists.newArrayList("numeric1", "numeric2", "numeric3"), 
+						keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("small", QueryConditional.NOT_EQUAL, "0")).results));
+				Assert.assertEquals(Lists.newArrayList("numeric2", "numeric3"), 
+						keysOf(numericQuery.execute(NumericTestClass.class, new Triplet("big", QueryConditional.GREATER_THAN, "0")).results));
+			}
+		} finally {
+			removeNumericRows();
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testM_queryRejectsPageSizeBelowOne() throws Exception {
+		query.setPageSize(0);
+	}
+	
+	private void insertNumericRows() throws Exception {
+		cassandra.insert(new NumericTestClass("numeric1", -3000000000L, -1.5d, -7));
+		cassandra.insert(new NumericTestClass("numeric2", 5L, 0.25d, 5));
+		cassandra.insert(new NumericTestClass("numeric3", 3000000000L, 10.0d, 100));
+	}
+	
+	private void removeNumericRows() throws Exception {
+		for (int i = 1; i <= 3; i++) {
+			cassandra.remove(NumericTestClass.class, "numeric" + i);
+		}
+	}
+	
+	private List<String> keysOf(List<NumericTestClass> results) {
+		List<String> keys = Lists.newArrayList();
+		for (NumericTestClass result : results) {
+			keys.add(result.key);
+		}
+		return keys;
+	}
+	
 	@Test
 	public void testK_CleanUpTheMess() throws Exception {		
 		cassandra.remove(StandardColumnTestClass.class, "firstKey");
@@ -216,4 +339,71 @@ public class QueryTest {
 		cassandra.remove(StandardColumnTestClass.class, "secondObject");
 		cassandra.remove(StandardColumnTestClass.class, "thirdObject");
 	}
+
+	@ColumnFamily(name="Numeric1")
+	public static class NumericTestClass {
+		@Key
+		private String key;
+		
+		@Column
+		private Long big;
+		
+		@Column
+		private Double ratio;
+		
+		@Column
+		private Integer small;
+		
+		public NumericTestClass() {
+		}
+		
+		NumericTestClass(String key, Long big, Double ratio, Integer small) {
+			this.key = key;
+			this.big = big;
+			this.ratio = ratio;
+			this.small = small;
+		}
+	}
+
+	@Test
+	public void testN_indexedWritesRouteOnTheEntityRow() throws Exception {
+		final List<String> routedOn = new CopyOnWriteArrayList<String>();
+		cassandra.getConnectionPool().setHostSelectionPolicy(new HostSelectionPolicy() {
+			public List<String> orderHosts(List<String> hosts, String key) {
+				routedOn.add(key);
+				return hosts;
+			}
+			public void connectionAcquired(String host) {
+			}
+			public void connectionReleased(String host, long elapsedNanos) {
+			}
+		});
+		
+		cassandra.insert(new IndexedTestClass("routed1", "routed@example.com", 1L));
+		cassandra.update(new IndexedTestClass("routed1", "moved@example.com", 2L));
+		Assert.assertEquals(Lists.newArrayList("routed1", "routed1"), routedOn);
+	}
+	
+	@ColumnFamily(name="Indexed1")
+	public static class IndexedTestClass {
+		@Key
+		private String key;
+		
+		@Indexed
+		@Column
+		private String email;
+		
+		@Indexed
+		@Column
+		private Long score;
+		
+		public IndexedTestClass() {
+		}
+		
+		IndexedTestClass(String key, String email, Long score) {
+			this.key = key;
+			this.email = email;
+			this.score = score;
+		}
+	}
 }
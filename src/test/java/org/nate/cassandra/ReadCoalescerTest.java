@@ -0,0 +1,142 @@
+package org.nate.cassandra;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReadCoalescerTest {
+
+	@Test
+	public void concurrentReadsOfTheSameKeyShareOneCall() throws Exception {
+		final ReadCoalescer coalescer = new ReadCoalescer();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<String> read = new Callable<String>() {
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				started.countDown();
+				release.await();
+				return "row";
+			}
+		};
+		
+		final String[] results = new String[2];
+		Thread first = new Thread() {
+			public void run() {
+				results[0] = coalescer.read("key", read);
+			}
+		};
+		first.start();
+		started.await();
+		Thread second = new Thread() {
+			public void run() {
+				results[1] = coalescer.read("key", read);
+			}
+		};
+		second.start();
+		Thread.sleep(50);
+		release.countDown();
+		first.join();
+		second.join();
+		
+		Assert.assertEquals("row", results[0]);
+		Assert.assertEquals("row", results[1]);
+		Assert.assertEquals(1, calls.get());
+		Assert.assertEquals("row", coalescer.read("key", read));
+		Assert.assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void readsAfterAWriteDoNotJoinAnEarlierRead() throws Exception {
+		final ReadCoalescer coalescer = new ReadCoalescer();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final String[] results = new String[1];
+		Thread before = new Thread() {
+			public void run() {
+				results[0] = coalescer.read("row", "key", new Callable<String>() {
+					public String call() throws Exception {
+						calls.incrementAndGet();
+						started.countDown();
+						release.await();
+						return "before the write";
+					}
+				});
+			}
+		};
+		before.start();
+		started.await();
+		
+		coalescer.invalidate("row");
+		String after = coalescer.read("row", "key", new Callable<String>() {
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				return "after the write";
+			}
+		});
+		Assert.assertEquals("after the write", after);
+		Assert.assertEquals(2, calls.get());
+		
+		release.countDown();
+		before.join();
+		Assert.assertEquals("before the write", results[0]);
+	}
+
+	@Test
+	public void batchedReadersAreReleasedWhenTheLeaderDiesWithAnError() throws Exception {
+		CassandraOperations failing = new CassandraOperations() {
+			@Override
+			Map<String, List<ColumnOrSuperColumn>> multigetColumns(String columnFamilyName, SlicePredicate slicePredicate, ConsistencyLevel consistency, List<String> keys) {
+				throw new AssertionError("leader died");
+			}
+		};
+		final ReadBatcher batcher = new ReadBatcher(failing, 200L, 2);
+		final Throwable[] failures = new Throwable[2];
+		Thread leader = new Thread() {
+			public void run() {
+				try {
+					batcher.read("batch", "Standard1", new SlicePredicate(), ConsistencyLevel.ONE, "key1");
+				} catch (Throwable t) {
+					failures[0] = t;
+				}
+			}
+		};
+		Thread follower = new Thread() {
+			public void run() {
+				try {
+					batcher.read("batch", "Standard1", new SlicePredicate(), ConsistencyLevel.ONE, "key2");
+				} catch (Throwable t) {
+					failures[1] = t;
+				}
+			}
+		};
+		leader.start();
+		Thread.sleep(20L);
+		follower.start();
+		leader.join(2000L);
+		follower.join(2000L);
+		
+		Assert.assertFalse(follower.isAlive());
+		Assert.assertTrue(failures[0] instanceof AssertionError);
+		Assert.assertTrue(failures[1] instanceof CassandraOperationException);
+	}
+
+	@Test(expected=CassandraOperationException.class)
+	public void failuresReachTheCaller() {
+		new ReadCoalescer().read("key", new Callable<String>() {
+			public String call() throws Exception {
+				throw new IllegalStateException("down");
+			}
+		});
+	}
+}
@@ -0,0 +1,103 @@
+package org.nate.cassandra;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResultSetTest {
+
+	@Test
+	public void orKeepsEachKeyOnceInOrder() throws Exception {
+		ResultSet<StandardColumnTestClass> union = resultSet("a", "b", "a").or(resultSet("c", "b", "c"));
+		Assert.assertEquals(3, union.results.size());
+		Assert.assertEquals("a", union.results.get(0).getKey());
+		Assert.assertEquals("b", union.results.get(1).getKey());
+		Assert.assertEquals("c", union.results.get(2).getKey());
+	}
+
+	@Test
+	public void andKeepsTheOtherSetsResultsOnce() throws Exception {
+		ResultSet<StandardColumnTestClass> other = resultSet("c", "b", "b", "a");
+		ResultSet<StandardColumnTestClass> intersection = resultSet("a", "b").and(other);
+		Assert.assertEquals(2, intersection.results.size());
+		Assert.assertSame(other.results.get(1), intersection.results.get(0));
+		Assert.assertSame(other.results.get(3), intersection.results.get(1));
+	}
+
+	@Test
+	public void sortsLongsAndDoublesByValue() throws Exception {
+		ResultSet<SortTestClass> resultSet = new ResultSet<SortTestClass>();
+		resultSet.results.add(new SortTestClass("a", Long.MAX_VALUE, 0.5d));
+		resultSet.results.add(new SortTestClass("b", Long.MIN_VALUE, -0.25d));
+		resultSet.results.add(new SortTestClass("c", 0L, -3d));
+		resultSet.results.add(new SortTestClass("d", null, null));
+		
+		List<SortTestClass> byLong = resultSet.ascendingBy("longValue").results;
+		Assert.assertEquals("b", byLong.get(0).name);
+		Assert.assertEquals("c", byLong.get(1).name);
+		Assert.assertEquals("a", byLong.get(2).name);
+		Assert.assertEquals("d", byLong.get(3).name);
+		
+		List<SortTestClass> byDouble = resultSet.descendingBy("doubleValue").results;
+		Assert.assertEquals("a", byDouble.get(0).name);
+		Assert.assertEquals("b", byDouble.get(1).name);
+		Assert.assertEquals("c", byDouble.get(2).name);
+		Assert.assertEquals("d", byDouble.get(3).name);
+	}
+	
+	@Test
+	public void sortsOnLaterFieldsWhenEarlierOnesAreEqual() throws Exception {
+		ResultSet<SortTestClass> resultSet = new ResultSet<SortTestClass>();
+		resultSet.results.add(new SortTestClass("b", 1L, 2d));
+		resultSet.results.add(new SortTestClass("a", 2L, 1d));
+		resultSet.results.add(new SortTestClass("A", 1L, 1d));
+		
+		List<SortTestClass> sorted = resultSet.ascendingBy("longValue", "doubleValue").results;
+		Assert.assertEquals("A", sorted.get(0).name);
+		Assert.assertEquals("b", sorted.get(1).name);
+		Assert.assertEquals("a", sorted.get(2).name);
+		
+		sorted = resultSet.ascendingBy("name").results;
+		Assert.assertEquals("a", sorted.get(0).name);
+		Assert.assertEquals("A", sorted.get(1).name);
+		Assert.assertEquals("b", sorted.get(2).name);
+	}
+	
+	@Test
+	public void topMatchesTheStartOfAFullSort() throws Exception {
+		ResultSet<SortTestClass> resultSet = new ResultSet<SortTestClass>();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			resultSet.results.add(new SortTestClass("result" + i, (long) random.nextInt(100), random.nextDouble()));
+		}
+		
+		Assert.assertEquals(resultSet.ascendingBy("longValue").limit(20).results, resultSet.topAscendingBy(20, "longValue").results);
+		Assert.assertEquals(resultSet.descendingBy("longValue", "doubleValue").limit(20).results, resultSet.topDescendingBy(20, "longValue", "doubleValue").results);
+		Assert.assertEquals(1000, resultSet.topAscendingBy(5000, "name").results.size());
+		Assert.assertTrue(resultSet.topAscendingBy(0, "name").results.isEmpty());
+	}
+	
+	private ResultSet<StandardColumnTestClass> resultSet(String... keys) {
+		ResultSet<StandardColumnTestClass> resultSet = new ResultSet<StandardColumnTestClass>();
+		for (String key : keys) {
+			StandardColumnTestClass result = new StandardColumnTestClass();
+			result.setKey(key);
+			resultSet.results.add(result);
+		}
+		return resultSet;
+	}
+
+	public static class SortTestClass {
+		private String name;
+		private Long longValue;
+		private Double doubleValue;
+		
+		SortTestClass(String name, Long longValue, Double doubleValue) {
+			this.name = name;
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.nate.cassandra.connector;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Cassandra.Client;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TSimpleServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nate.cassandra.OperationFuture;
+
+public class AsyncConnectionTest {
+
+	private ServerSocket socket;
+	private TServer server;
+	private SelectorPool selectors;
+	private volatile long delay = 0L;
+
+	/**
+	 * A framed server whose get_slice answers with one column named after the key it was given.
+	 */
+	@Before
+	public void startServer() throws Exception {
+		Cassandra.Iface handler = (Cassandra.Iface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Cassandra.Iface.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Thread.sleep(delay);
+				ColumnOrSuperColumn column = new ColumnOrSuperColumn();
+				column.setColumn(new Column(((String) args[1]).getBytes(), new byte[0], 0L));
+				return Collections.singletonList(column);
+			}
+		});
+		socket = new ServerSocket(0);
+		server = new TSimpleServer(new Cassandra.Processor(handler), new TServerSocket(socket), new TFramedTransport.Factory(), new TBinaryProtocol.Factory());
+		Thread serving = new Thread() {
+			public void run() {
+				server.serve();
+			}
+		};
+		serving.setDaemon(true);
+		serving.start();
+		selectors = new SelectorPool(1);
+	}
+
+	@After
+	public void stopServer() {
+		selectors.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void pipelinedCallsGetTheirOwnResponses() throws Exception {
+		AsyncConnection connection = new AsyncConnection("localhost", socket.getLocalPort(), 5000, selectors);
+		connection.openConnection();
+		
+		List<OperationFuture<String>> responses = new ArrayList<OperationFuture<String>>();
+		for (int i = 0; i < 200; i++) {
+			OperationFuture<String> response = new OperationFuture<String>();
+			connection.call(getSlice("key" + i), response);
+			responses.add(response);
+		}
+		for (int i = 0; i < 200; i++) {
+			Assert.assertEquals("key" + i, responses.get(i).get(5, TimeUnit.SECONDS));
+		}
+		Assert.assertTrue(connection.isOpen());
+		connection.closeConnection();
+	}
+
+	@Test
+	public void aTimedOutCallFailsTheConnection() throws Exception {
+		delay = 500L;
+		AsyncConnection connection = new AsyncConnection("localhost", socket.getLocalPort(), 100, selectors);
+		connection.openConnection();
+		
+		OperationFuture<String> response = new OperationFuture<String>();
+		connection.call(getSlice("slow"), response);
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			Assert.fail("should have timed out");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TTransportException);
+		}
+		Assert.assertFalse(connection.isOpen());
+		
+		OperationFuture<String> afterClose = new OperationFuture<String>();
+		connection.call(getSlice("late"), afterClose);
+		Assert.assertTrue(afterClose.isDone());
+	}
+
+	@Test
+	public void aFailingTaskDoesNotStopTheSelectorThread() throws Exception {
+		selectors.next().execute(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("a task gone wrong");
+			}
+		});
+		// connections closed while their calls are still being queued do not take the loop down either
+		for (int i = 0; i < 20; i++) {
+			AsyncConnection closing = new AsyncConnection("localhost", socket.getLocalPort(), 5000, selectors);
+			closing.openConnection();
+			closing.call(getSlice("closing"), new OperationFuture<String>());
+			closing.closeConnection();
+		}
+		
+		AsyncConnection connection = new AsyncConnection("localhost", socket.getLocalPort(), 5000, selectors);
+		connection.openConnection();
+		OperationFuture<String> response = new OperationFuture<String>();
+		connection.call(getSlice("still running"), response);
+		Assert.assertEquals("still running", response.get(5, TimeUnit.SECONDS));
+		connection.closeConnection();
+	}
+
+	private AsyncCall<String> getSlice(final String key) {
+		return new AsyncCall<String>() {
+			public void send(Client client) throws TException {
+				client.send_get_slice("Keyspace1", key, new ColumnParent("Standard1"), new SlicePredicate(), ConsistencyLevel.ONE);
+			}
+			public String receive(Client client) throws Exception {
+				return new String(client.recv_get_slice().get(0).getColumn().getName());
+			}
+		};
+	}
+}
@@ -1,7 +1,18 @@
 package org.nate.cassandra.connector;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+
 import junit.framework.Assert;
 
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TSimpleServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
 import org.junit.Before;
 import org.junit.Test;
 import org.nate.cassandra.connector.Connection;
@@ -24,4 +35,39 @@ public class ConnectionFactoryTest {
 		Assert.assertNotNull(conn);
 		Assert.assertFalse(conn.isOpen());
 	}
+
+	@Test
+	public void framedCompactConnectionTalksToAFramedCompactServer() throws Exception {
+		Cassandra.Iface handler = (Cassandra.Iface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Cassandra.Iface.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return "Framed Compact Cluster";
+			}
+		});
+		ServerSocket socket = new ServerSocket(0);
+		final TServer server = new TSimpleServer(new Cassandra.Processor(handler), new TServerSocket(socket), new TFramedTransport.Factory(), new TCompactProtocol.Factory());
+		Thread serving = new Thread() {
+			public void run() {
+				server.serve();
+			}
+		};
+		serving.setDaemon(true);
+		serving.start();
+		
+		try {
+			factory.setPort(socket.getLocalPort());
+			factory.setFramedTransport(true);
+			factory.setCompactProtocol(true);
+			factory.setKeepAlive(true);
+			factory.setSendBufferSize(65536);
+			factory.setReceiveBufferSize(65536);
+			Connection conn = factory.createConnection();
+			conn.openConnection();
+			Assert.assertTrue(conn.isAlive());
+			Assert.assertEquals("Framed Compact Cluster", conn.getClient().describe_cluster_name());
+			conn.closeConnection();
+			Assert.assertFalse(conn.isAlive());
+		} finally {
+			server.stop();
+		}
+	}
 }
@@ -1,12 +1,35 @@
 package org.nate.cassandra.connector;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.cassandra.thrift.Cassandra.Client;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TTransportException;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.nate.cassandra.CassandraOperationException;
+import org.nate.cassandra.CassandraOperations;
+import org.nate.cassandra.Operation;
+import org.nate.cassandra.OperationWorker;
+import org.nate.cassandra.ReadOperation;
+import org.nate.cassandra.StandardColumnTestClass;
+import org.nate.functions.functors.ActionFn;
 import org.nate.cassandra.connector.Connection;
 import org.nate.cassandra.connector.ConnectionFactory;
 import org.nate.cassandra.connector.ConnectionPool;
@@ -27,7 +50,7 @@ public class ConnectionPoolTest {
 	
 	@Test
 	public void initialize() throws Exception {
-		Map<String, Map<Connection, Boolean>> initialMap = pool.simulateInitialize();
+		Map<String, BlockingDeque<Connection>> initialMap = pool.simulateInitialize();
 		
 		Assert.assertNotNull(initialMap);
 		Assert.assertEquals(1, initialMap.size());
@@ -61,13 +84,431 @@ public class ConnectionPoolTest {
 		Assert.assertNotNull(conn3);
 	}
 	
+	@Test
+	public void concurrentCheckoutNeverSharesConnection() throws Exception {
+		final ConnectionPool stubPool = new ConnectionPool(2, 5000L, Lists.<ConnectionFactory>newArrayList(
+				new StubConnectionFactory("host1"), new StubConnectionFactory("host2")));
+		final Set<Connection> inUse = java.util.Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+		final AtomicInteger collisions = new AtomicInteger();
+		final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+		final CountDownLatch done = new CountDownLatch(16);
+		
+		for (int t = 0; t < 16; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 200; i++) {
+							Connection conn = stubPool.getConnection();
+							if (!inUse.add(conn)) {
+								collisions.incrementAndGet();
+							}
+							inUse.remove(conn);
+							stubPool.releaseConnection(conn);
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		
+		done.await();
+		Assert.assertEquals("checkouts failed: " + failures, 0, failures.size());
+		Assert.assertEquals(0, collisions.get());
+		
+		// all four connections are back, a fifth checkout has to wait and time out
+		List<Connection> held = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			held.add(stubPool.getConnection());
+		}
+		stubPool.setWaitForConnectionTimeout(50L);
+		try {
+			stubPool.getConnection();
+			Assert.fail("Expected timeout exception");
+		} catch (CassandraOperationException e) {
+			Assert.assertEquals("Timed out waiting for connection", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void persistentConnectionsAreEvictedInTheBackgroundOnceIdle() throws Exception {
+		StubConnectionFactory factory = new StubConnectionFactory("host1");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(factory));
+		stubPool.setMaxIdleTime(50L);
+		stubPool.setEvictionInterval(20L);
+		stubPool.setPersistentConnections(true);
+		try {
+			Connection conn = stubPool.getConnection();
+			stubPool.releaseConnection(conn);
+			Assert.assertSame(conn, stubPool.getConnection());
+			stubPool.releaseConnection(conn);
+			Assert.assertEquals(1, factory.opens.get());
+			Assert.assertTrue(conn.isOpen());
+			
+			long deadline = System.currentTimeMillis() + 2000L;
+			while (conn.isOpen() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+			Assert.assertFalse("idle connection should have been evicted", conn.isOpen());
+			
+			stubPool.releaseConnection(stubPool.getConnection());
+			Assert.assertEquals(2, factory.opens.get());
+		} finally {
+			stubPool.shutdown();
+		}
+	}
+	
+	@Test
+	public void evictionSweepsEveryHostWhateverThePolicyOrder() throws Exception {
+		StubConnectionFactory host1 = new StubConnectionFactory("host1");
+		StubConnectionFactory host2 = new StubConnectionFactory("host2");
+		ConnectionPool stubPool = new ConnectionPool(2, 1000L, Lists.<ConnectionFactory>newArrayList(host1, host2));
+		stubPool.setHostSelectionPolicy(new FixedOrderPolicy());
+		stubPool.setMaxIdleTime(50L);
+		stubPool.setEvictionInterval(20L);
+		stubPool.setPersistentConnections(true);
+		try {
+			List<Connection> held = Lists.newArrayList();
+			for (int i = 0; i < 4; i++) {
+				held.add(stubPool.getConnection());
+			}
+			for (Connection conn : held) {
+				stubPool.releaseConnection(conn);
+			}
+			Assert.assertEquals(2, host1.opens.get());
+			Assert.assertEquals(2, host2.opens.get());
+			
+			long deadline = System.currentTimeMillis() + 2000L;
+			while (anyOpen(held) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+			for (Connection conn : held) {
+				Assert.assertFalse("idle connection to " + conn.getHost() + " should have been evicted", conn.isOpen());
+			}
+		} finally {
+			stubPool.shutdown();
+		}
+	}
+	
+	private boolean anyOpen(List<Connection> connections) {
+		for (Connection conn : connections) {
+			if (conn.isOpen()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Test
+	public void persistentConnectionsAreRecycledPastTheirLifetime() throws Exception {
+		StubConnectionFactory factory = new StubConnectionFactory("host1");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(factory));
+		stubPool.setMaxIdleTime(0L);
+		stubPool.setMaxConnectionLifetime(50L);
+		stubPool.setEvictionInterval(0L);
+		stubPool.setPersistentConnections(true);
+		
+		stubPool.releaseConnection(stubPool.getConnection());
+		stubPool.releaseConnection(stubPool.getConnection());
+		Assert.assertEquals(1, factory.opens.get());
+		
+		Thread.sleep(80L);
+		Connection recycled = stubPool.getConnection();
+		Assert.assertEquals(2, factory.opens.get());
+		Assert.assertTrue(recycled.isOpen());
+		stubPool.releaseConnection(recycled);
+	}
+	
+	@Test
+	public void persistentConnectionsThatAreNotAliveAreReopened() throws Exception {
+		StubConnectionFactory factory = new StubConnectionFactory("host1");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(factory));
+		stubPool.setEvictionInterval(0L);
+		stubPool.setPersistentConnections(true);
+		
+		stubPool.releaseConnection(stubPool.getConnection());
+		factory.alive = false;
+		Connection reopened = stubPool.getConnection();
+		Assert.assertEquals(2, factory.opens.get());
+		
+		// a connection found dead on release is closed rather than kept
+		stubPool.releaseConnection(reopened);
+		Assert.assertFalse(reopened.isOpen());
+	}
+	
+	@Test
+	public void failingHostIsSkippedProbedAndRestored() throws Exception {
+		StubConnectionFactory host1 = new StubConnectionFactory("host1");
+		StubConnectionFactory host2 = new StubConnectionFactory("host2");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(host1, host2));
+		stubPool.setHostSelectionPolicy(new FixedOrderPolicy());
+		stubPool.setFailureThreshold(2);
+		stubPool.setProbeInterval(50L);
+		try {
+			host1.refusing = true;
+			for (int i = 0; i < 2; i++) {
+				Connection conn = stubPool.getConnection();
+				Assert.assertEquals("host2", conn.getHost());
+				stubPool.releaseConnection(conn);
+			}
+			Assert.assertTrue(stubPool.isHostDown("host1"));
+			
+			// a down host is skipped, so it is not even tried
+			int refusedOpens = host1.opens.get();
+			Connection conn = stubPool.getConnection();
+			Assert.assertEquals("host2", conn.getHost());
+			stubPool.releaseConnection(conn);
+			Assert.assertEquals(refusedOpens, host1.opens.get());
+			
+			host1.refusing = false;
+			long deadline = System.currentTimeMillis() + 2000L;
+			while (stubPool.isHostDown("host1") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10L);
+			}
+			Assert.assertFalse("prober should have restored host1", stubPool.isHostDown("host1"));
+			Assert.assertTrue(host1.opens.get() > refusedOpens);
+			
+			conn = stubPool.getConnection();
+			Assert.assertEquals("host1", conn.getHost());
+			stubPool.releaseConnection(conn);
+		} finally {
+			stubPool.shutdown();
+		}
+	}
+	
+	@Test
+	public void downHostIsNotUsedWhileHealthyConnectionsAreLeased() throws Exception {
+		StubConnectionFactory host1 = new StubConnectionFactory("host1");
+		StubConnectionFactory host2 = new StubConnectionFactory("host2");
+		final ConnectionPool stubPool = new ConnectionPool(1, 100L, Lists.<ConnectionFactory>newArrayList(host1, host2));
+		stubPool.setHostSelectionPolicy(new FixedOrderPolicy());
+		stubPool.setFailureThreshold(1);
+		stubPool.setProbeInterval(60000L);
+		try {
+			stubPool.reportFailure("host1");
+			Assert.assertTrue(stubPool.isHostDown("host1"));
+			
+			final Connection leased = stubPool.getConnection();
+			Assert.assertEquals("host2", leased.getHost());
+			try {
+				stubPool.getConnection();
+				Assert.fail("the down host's idle connection should not be handed out");
+			} catch (CassandraOperationException e) {
+				Assert.assertEquals("Timed out waiting for connection", e.getMessage());
+			}
+			Assert.assertEquals(0, host1.opens.get());
+			
+			// a waiter gets the healthy connection as soon as it is put back
+			stubPool.setWaitForConnectionTimeout(2000L);
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(50L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					stubPool.releaseConnection(leased);
+				}
+			}.start();
+			Connection conn = stubPool.getConnection();
+			Assert.assertEquals("host2", conn.getHost());
+			Assert.assertEquals(0, host1.opens.get());
+			
+			// with every host down the pool still hands out what it has
+			stubPool.reportFailure("host2");
+			stubPool.releaseConnection(conn);
+			stubPool.setWaitForConnectionTimeout(100L);
+			Assert.assertEquals("host1", stubPool.getConnection().getHost());
+		} finally {
+			stubPool.shutdown();
+		}
+	}
+	
+	@Test
+	public void readsFailOverToAnotherHostButWritesDoNot() throws Exception {
+		StubConnectionFactory host1 = new StubConnectionFactory("host1");
+		StubConnectionFactory host2 = new StubConnectionFactory("host2");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(host1, host2));
+		stubPool.setHostSelectionPolicy(new FixedOrderPolicy());
+		CassandraOperations cassandra = new CassandraOperations();
+		cassandra.setConnectionPool(stubPool);
+		OperationWorker worker = new OperationWorker(cassandra);
+		
+		host1.failing = true;
+		String servedBy = worker.doWork(new ReadOperation<String>(cassandra) {
+			public String work() throws Exception {
+				return client.describe_cluster_name();
+			}
+		});
+		Assert.assertEquals("host2", servedBy);
+		Assert.assertEquals(1, host1.calls.get());
+		Assert.assertEquals(1, host2.calls.get());
+		
+		try {
+			worker.doWork(new Operation<String>(cassandra) {
+				public String work() throws Exception {
+					return client.describe_cluster_name();
+				}
+			});
+			Assert.fail("a write should not be replayed on another host");
+		} catch (CassandraOperationException e) {
+			Assert.assertTrue(e.getCause() instanceof TTransportException);
+		}
+		Assert.assertEquals(2, host1.calls.get());
+		Assert.assertEquals(1, host2.calls.get());
+	}
+	
+	@Test
+	public void connectionIsClosedAfterAFailureMidCall() throws Exception {
+		StubConnectionFactory host1 = new StubConnectionFactory("host1");
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, Lists.<ConnectionFactory>newArrayList(host1));
+		stubPool.setEvictionInterval(0L);
+		stubPool.setPersistentConnections(true);
+		CassandraOperations cassandra = new CassandraOperations();
+		cassandra.setConnectionPool(stubPool);
+		OperationWorker worker = new OperationWorker(cassandra);
+		Operation<String> clusterName = new ReadOperation<String>(cassandra) {
+			public String work() throws Exception {
+				return client.describe_cluster_name();
+			}
+		};
+		
+		Assert.assertEquals("host1", worker.doWork(clusterName));
+		Assert.assertEquals("host1", worker.doWork(clusterName));
+		Assert.assertEquals(1, host1.opens.get());
+		
+		// a protocol error is not a host failure, but the rest of the response is still on the socket
+		host1.garbled = true;
+		try {
+			worker.doWork(clusterName);
+			Assert.fail("expected the protocol error");
+		} catch (CassandraOperationException e) {
+			Assert.assertTrue(e.getCause() instanceof TProtocolException);
+		}
+		host1.garbled = false;
+		Assert.assertEquals("host1", worker.doWork(clusterName));
+		Assert.assertEquals(2, host1.opens.get());
+	}
+	
+	@Test
+	public void parallelScanReadsEachRangeFromOneOfItsReplicas() throws Exception {
+		List<ConnectionFactory> factories = Lists.newArrayList();
+		final Map<String, String> rangeServedBy = new ConcurrentHashMap<String, String>();
+		for (int i = 1; i <= 3; i++) {
+			StubConnectionFactory factory = new StubConnectionFactory("host" + i);
+			factory.rangeServedBy = rangeServedBy;
+			factory.ring = Lists.newArrayList(
+					new TokenRange("0", "m", Lists.newArrayList("host2")),
+					new TokenRange("m", "t", Lists.newArrayList("host3")),
+					new TokenRange("t", "0", Lists.newArrayList("host1")));
+			factories.add(factory);
+		}
+		ConnectionPool stubPool = new ConnectionPool(1, 1000L, factories);
+		stubPool.setHostSelectionPolicy(new FixedOrderPolicy());
+		CassandraOperations cassandra = new CassandraOperations();
+		cassandra.setConnectionPool(stubPool);
+		
+		cassandra.parallelScan(StandardColumnTestClass.class, new ActionFn<StandardColumnTestClass>() {
+			public void apply(StandardColumnTestClass it) {
+			}
+		}, 3);
+		Assert.assertEquals("host2", rangeServedBy.get("0"));
+		Assert.assertEquals("host3", rangeServedBy.get("m"));
+		Assert.assertEquals("host1", rangeServedBy.get("t"));
+	}
+	
+	private static class FixedOrderPolicy implements HostSelectionPolicy {
+		
+		public List<String> orderHosts(List<String> hosts, String key) {
+			return hosts;
+		}
+		
+		public void connectionAcquired(String host) {
+		}
+		
+		public void connectionReleased(String host, long elapsedNanos) {
+		}
+	}
+	
+	private static class StubConnectionFactory extends ConnectionFactory {
+		
+		private final AtomicInteger opens = new AtomicInteger();
+		private final AtomicInteger calls = new AtomicInteger();
+		private volatile boolean alive = true;
+		private volatile boolean refusing = false;
+		private volatile boolean failing = false;
+		private volatile boolean garbled = false;
+		private List<TokenRange> ring;
+		private Map<String, String> rangeServedBy;
+		
+		public StubConnectionFactory(String host) {
+			super(host, 9160, 1000);
+		}
+		
+		@Override
+		public Connection createConnection() {
+			return new Connection(getHost(), getPort(), getTimeout()) {
+				private final Client client = new Client(null) {
+					@Override
+					public String describe_cluster_name() throws TException {
+						calls.incrementAndGet();
+						if (failing) {
+							throw new TTransportException("connection reset by " + getHost());
+						}
+						if (garbled) {
+							throw new TProtocolException("bad response from " + getHost());
+						}
+						return getHost();
+					}
+					
+					@Override
+					public String describe_partitioner() {
+						return "org.apache.cassandra.dht.OrderPreservingPartitioner";
+					}
+					
+					@Override
+					public List<TokenRange> describe_ring(String keyspace) {
+						return ring;
+					}
+					
+					@Override
+					public List<KeySlice> get_range_slices(String keyspace, ColumnParent columnParent, SlicePredicate predicate, KeyRange range, ConsistencyLevel consistency) {
+						rangeServedBy.put(range.getStart_token(), getHost());
+						return Collections.<KeySlice>emptyList();
+					}
+				};
+				
+				@Override
+				public void openConnection() {
+					opens.incrementAndGet();
+					if (refusing) {
+						throw new CassandraOperationException("connection refused by " + getHost());
+					}
+					markOpened();
+				}
+				
+				@Override
+				public Client getClient() {
+					return isOpen() ? client : null;
+				}
+				
+				@Override
+				public boolean isAlive() {
+					return isOpen() && alive;
+				}
+			};
+		}
+	}
+	
 	private class TestConnectionPool extends ConnectionPool {
 		
 		public TestConnectionPool() {
 			super();
 		}
 		
-		public Map<String, Map<Connection, Boolean>> simulateInitialize() {
+		public Map<String, BlockingDeque<Connection>> simulateInitialize() {
 			return super.initializePool();
 		}
 		
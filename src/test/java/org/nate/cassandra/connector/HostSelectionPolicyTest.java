@@ -0,0 +1,88 @@
+package org.nate.cassandra.connector;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class HostSelectionPolicyTest {
+
+	private List<String> hosts = Lists.newArrayList("host1", "host2", "host3");
+	
+	@Test
+	public void roundRobinRotatesFirstHost() throws Exception {
+		RoundRobinPolicy policy = new RoundRobinPolicy();
+		
+		Assert.assertEquals(Lists.newArrayList("host1", "host2", "host3"), policy.orderHosts(hosts, null));
+		Assert.assertEquals(Lists.newArrayList("host2", "host3", "host1"), policy.orderHosts(hosts, null));
+		Assert.assertEquals(Lists.newArrayList("host3", "host1", "host2"), policy.orderHosts(hosts, null));
+		Assert.assertEquals(Lists.newArrayList("host1", "host2", "host3"), policy.orderHosts(hosts, null));
+	}
+	
+	@Test
+	public void leastOutstandingPrefersIdleHost() throws Exception {
+		LeastOutstandingRequestsPolicy policy = new LeastOutstandingRequestsPolicy();
+		policy.connectionAcquired("host1");
+		policy.connectionAcquired("host1");
+		policy.connectionAcquired("host3");
+		
+		Assert.assertEquals(Lists.newArrayList("host2", "host3", "host1"), policy.orderHosts(hosts, null));
+		
+		policy.connectionReleased("host1", 1000L);
+		policy.connectionReleased("host1", 1000L);
+		Assert.assertEquals(0, policy.getOutstanding("host1"));
+		Assert.assertEquals("host3", policy.orderHosts(hosts, null).get(2));
+	}
+	
+	@Test
+	public void latencyAwarePrefersFastestHost() throws Exception {
+		LatencyAwarePolicy policy = new LatencyAwarePolicy();
+		policy.connectionReleased("host1", 9000000L);
+		policy.connectionReleased("host2", 1000000L);
+		policy.connectionReleased("host3", 5000000L);
+		
+		Assert.assertEquals(Lists.newArrayList("host2", "host3", "host1"), policy.orderHosts(hosts, null));
+		
+		// host2 gets slow, the moving average has to catch up over several samples
+		for (int i = 0; i < 20; i++) {
+			policy.connectionReleased("host2", 20000000L);
+		}
+		Assert.assertEquals("host2", policy.orderHosts(hosts, null).get(2));
+	}
+	
+	@Test
+	public void latencyAwareRetriesHostsWithExpiredSamples() throws Exception {
+		LatencyAwarePolicy policy = new LatencyAwarePolicy();
+		policy.setSampleExpiry(-1L);
+		policy.connectionReleased("host1", 9000000L);
+		policy.connectionReleased("host2", 1000000L);
+		
+		Assert.assertEquals(Lists.newArrayList("host1", "host2"), policy.orderHosts(Lists.newArrayList("host1", "host2"), null));
+	}
+	
+	@Test
+	public void tokenAwareRoutesToReplicaFirst() throws Exception {
+		List<TokenRange> ranges = Lists.newArrayList(
+				new TokenRange("0", "100", Lists.newArrayList("host1")),
+				new TokenRange("100", "200", Lists.newArrayList("host2")),
+				new TokenRange("200", "0", Lists.newArrayList("host3")));
+		TokenAwarePolicy policy = new TokenAwarePolicy();
+		policy.updateRing("org.apache.cassandra.dht.OrderPreservingPartitioner", ranges);
+		
+		Assert.assertEquals("host2", policy.orderHosts(hosts, "150").get(0));
+		Assert.assertEquals("host1", policy.orderHosts(hosts, "050").get(0));
+		Assert.assertEquals("host3", policy.orderHosts(hosts, "300").get(0));
+		Assert.assertEquals(3, policy.orderHosts(hosts, null).size());
+	}
+	
+	@Test
+	public void randomPartitionerTokensMatchServerHash() throws Exception {
+		TokenRing ring = new TokenRing(TokenRing.RANDOM_PARTITIONER, Lists.<TokenRange>newArrayList());
+		
+		Assert.assertEquals(new java.math.BigInteger("13958131056064522748236480633252194426"), ring.tokenFor("firstKey"));
+		Assert.assertEquals(java.math.BigInteger.ZERO, ring.tokenFor(""));
+	}
+}
@@ -0,0 +1,79 @@
+package org.nate.cassandra.serializer;
+
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.nate.cassandra.EntityMetadata;
+import org.nate.cassandra.annotation.Column;
+import org.nate.cassandra.annotation.ColumnFamily;
+import org.nate.cassandra.annotation.Key;
+
+public class SerializersTest {
+
+	@Test
+	public void fixedWidthSerializersRoundTrip() {
+		Assert.assertEquals(4, new Serializers.IntegerSerializer().toBytes(-7).length);
+		Assert.assertEquals(new Integer(-7), new Serializers.IntegerSerializer().fromBytes(new Serializers.IntegerSerializer().toBytes(-7)));
+		Assert.assertEquals(new Long(Long.MIN_VALUE), new Serializers.LongSerializer().fromBytes(new Serializers.LongSerializer().toBytes(Long.MIN_VALUE)));
+		Assert.assertEquals(new Double(-1.5), new Serializers.DoubleSerializer().fromBytes(new Serializers.DoubleSerializer().toBytes(-1.5)));
+		Assert.assertEquals(Boolean.TRUE, new Serializers.BooleanSerializer().fromBytes(new Serializers.BooleanSerializer().toBytes(true)));
+		
+		UUID uuid = UUID.randomUUID();
+		Assert.assertEquals(uuid, new Serializers.UUIDSerializer().fromBytes(new Serializers.UUIDSerializer().toBytes(uuid)));
+		Date date = new Date();
+		Assert.assertEquals(date, new Serializers.DateSerializer().fromBytes(new Serializers.DateSerializer().toBytes(date)));
+		Assert.assertEquals("\u00e9t\u00e9", new Serializers.StringSerializer().fromBytes(new byte[]{(byte) 0xc3, (byte) 0xa9, 't', (byte) 0xc3, (byte) 0xa9}));
+	}
+	
+	@Test
+	public void numbersDefaultToDecimalText() {
+		Serializer<Object> integers = Serializers.forType(Integer.class);
+		Assert.assertSame(integers, Serializers.forType(int.class));
+		Assert.assertEquals("42", new String(integers.toBytes(42)));
+		Assert.assertEquals(-5, integers.fromBytes("-5".getBytes()));
+		Assert.assertNull(integers.fromBytes("not a number".getBytes()));
+	}
+	
+	@Test
+	public void registeringForAPrimitiveCoversItsBoxedType() {
+		Serializer<Object> previous = Serializers.forType(Short.class);
+		Serializer<Short> binary = new Serializer<Short>() {
+			public byte[] toBytes(Short value) {
+				return new byte[]{(byte) (value >> 8), value.byteValue()};
+			}
+			
+			public Short fromBytes(byte[] bytes) {
+				return (short) ((bytes[0] << 8) | (bytes[1] & 0xff));
+			}
+		};
+		try {
+			Serializers.register(short.class, binary);
+			Assert.assertSame(binary, Serializers.forType(short.class));
+			Assert.assertSame(binary, Serializers.forType(Short.class));
+		} finally {
+			Serializers.register(Short.class, previous);
+		}
+	}
+	
+	@Test
+	public void columnCanNameItsSerializer() {
+		EntityMetadata metadata = EntityMetadata.forColumnFamily(BinaryTestClass.class);
+		Assert.assertEquals(8, metadata.getColumn("count").toBytes(3L).length);
+		Assert.assertEquals(1, metadata.getColumn("flag").toBytes(true).length);
+		Assert.assertEquals(false, metadata.getColumn("flag").fromBytes(new byte[]{0}));
+	}
+	
+	@ColumnFamily
+	public static class BinaryTestClass {
+		@Key
+		private String key;
+		
+		@Column(serializer=Serializers.LongSerializer.class)
+		private long count;
+		
+		@Column
+		private boolean flag;
+	}
+}